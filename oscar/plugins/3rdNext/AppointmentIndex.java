@@ -0,0 +1,106 @@
+/*
+ * One provider's booked appointments, read a day at a time from a range
+ * query.
+ *
+ * Rather than querying the appointment table once for every schedule day
+ * that is walked, appointments are fetched with a single range query per
+ * window of schedule dates (see ReportDao.streamAppointments).  The rows are
+ * read forward only, as the driver streams them, and merged with the
+ * schedule one day at a time: the row that starts the next day is held as
+ * a one-row lookahead, and the start/end minutes of a day are kept only
+ * until the day's openings are counted.  Memory therefore stays flat
+ * however many appointments a window holds.
+ */
+
+//package thirdnextappointment;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class AppointmentIndex {
+
+    /**
+     * Appointments booked on a single day, ordered by start time.  Times are
+     * held as minutes past midnight.
+     */
+    static class Day {
+
+        static final Day EMPTY = new Day(new int[0], new int[0], 0);
+
+        final int[] startMins;
+        final int[] endMins;
+        final int count;
+
+        Day(int[] startMins, int[] endMins, int count) {
+            this.startMins = startMins;
+            this.endMins = endMins;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Receives the appointments of a range of days, in date order.
+     */
+    interface DayHandler {
+
+        /**
+         * @param date in format "yyyy-MM-dd"
+         * @param day appointments booked on date, valid only during the call
+         * @throws SQLException
+         */
+        void day(String date, Day day) throws SQLException;
+    }
+
+    /**
+     * Passes the rows of an appointment range query, ordered by date and
+     * start time, to a handler one day at a time.  The arrays of a day are
+     * reused for the next.
+     * @param rs with columns appointment_date, start_time and end_time
+     * @param handler
+     * @return number of rows read
+     * @throws SQLException
+     */
+    static int stream(ResultSet rs, DayHandler handler) throws SQLException {
+        String apptDate = null;
+        int[] startMins = new int[16];
+        int[] endMins = new int[16];
+        int count = 0;
+        int rows = 0;
+        while (rs.next()) {
+            String date = rs.getString("appointment_date");
+            if (!date.equals(apptDate)) {
+                // The row is the lookahead: it ends the previous day
+                if (apptDate != null) {
+                    handler.day(apptDate, new Day(startMins, endMins, count));
+                    count = 0;
+                }
+                apptDate = date;
+            }
+            if (count == startMins.length) {
+                int[] grownStart = new int[count * 2];
+                int[] grownEnd = new int[count * 2];
+                System.arraycopy(startMins, 0, grownStart, 0, count);
+                System.arraycopy(endMins, 0, grownEnd, 0, count);
+                startMins = grownStart;
+                endMins = grownEnd;
+            }
+            startMins[count] = toMinutes(rs.getString("start_time"));
+            endMins[count] = toMinutes(rs.getString("end_time"));
+            ++count;
+            ++rows;
+        }
+        if (apptDate != null) {
+            handler.day(apptDate, new Day(startMins, endMins, count));
+        }
+        return rows;
+    }
+
+    /**
+     * Converts a time in format "HH:mm[:ss]" to minutes past midnight.
+     * @param time
+     * @return
+     */
+    static int toMinutes(String time) {
+        return Integer.parseInt(time.substring(0, 2)) * 60 + Integer.parseInt(time.substring(3, 5));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Replaces a file so that a reader, or the next run after a crash, finds
+ * either the old or the new content in full, never a partial file or none.
+ *
+ * The content is written to a hidden temp file of its own next to the
+ * target, synced to disk when its stream is closed, and then renamed over
+ * the target.  Writers of the same target at once, such as a service
+ * request and a scheduled run updating one index, each rename a complete
+ * file, and the last rename wins.  On
+ * POSIX the rename replaces the target atomically, so the target is never
+ * deleted first; only where a rename cannot replace an existing file, as on
+ * Windows, is the target deleted after the rename failed, and retried.  The
+ * temp file starts with a dot so 3rdNext.sh does not move it into sync/.
+ *
+ *   AtomicFile file = AtomicFile.create(target);
+ *   try {
+ *       ... write to and close file.getStream() ...
+ *       file.commit();
+ *   } finally {
+ *       file.abort();
+ *   }
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+public class AtomicFile {
+
+    /**
+     * Stream of the temp file that syncs it to disk when closed.
+     */
+    static private class SyncedStream extends FilterOutputStream {
+
+        private final FileOutputStream file;
+        private boolean closed = false;
+
+        SyncedStream(FileOutputStream file) {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                file.flush();
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private final File target;
+    private final File temp;
+    private final SyncedStream stream;
+    private boolean done = false;
+
+    private AtomicFile(File target, File temp, SyncedStream stream) {
+        this.target = target;
+        this.temp = temp;
+        this.stream = stream;
+    }
+
+    /**
+     * Opens a new temp file for a target, creating its directory if needed.
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    static AtomicFile create(File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = File.createTempFile("." + target.getName() + ".", ".tmp", dir);
+        return new AtomicFile(target, temp, new SyncedStream(new FileOutputStream(temp)));
+    }
+
+    /**
+     * @return the stream of the temp file, to be closed before commit
+     */
+    OutputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Closes the temp file, if not closed yet, and renames it over the
+     * target.
+     * @throws IOException if the target could not be replaced; the temp
+     * file is then removed and the target left as it was
+     */
+    void commit() throws IOException {
+        try {
+            stream.close();
+            if (!temp.renameTo(target)) {
+                // Rename does not replace an existing file on every platform
+                if (!temp.exists() || !target.exists() || !target.delete() || !temp.renameTo(target)) {
+                    throw new IOException("Cannot rename " + temp + " to " + target);
+                }
+            }
+            done = true;
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Discards the temp file, leaving the target as it was.  Does nothing
+     * after a commit.
+     */
+    void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // The temp file is removed regardless
+        }
+        temp.delete();
+    }
+
+    /**
+     * Replaces a text file.
+     * @param target
+     * @param content written in UTF-8
+     * @throws IOException
+     */
+    static void write(File target, String content) throws IOException {
+        AtomicFile file = create(target);
+        try {
+            Writer out = new OutputStreamWriter(file.getStream(), "UTF-8");
+            out.write(content);
+            out.close();
+            file.commit();
+        } finally {
+            file.abort();
+        }
+    }
+}
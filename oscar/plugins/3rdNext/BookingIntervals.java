@@ -0,0 +1,136 @@
+/*
+ * Overlap-aware booking model, used with bookingmodel=interval.
+ *
+ * The slot scan treats a slot as booked only when an appointment starts
+ * exactly on it, and remembers just the latest end time seen, so
+ * appointments that start off the slot grid, overlap or leave gaps are
+ * miscounted.  Here each appointment is instead the interval of minutes from
+ * its start_time through its end_time (the last minute booked, as OSCAR
+ * stores it), and the free time of a day is found by subtracting the union
+ * of those intervals from each block of consecutive bookable slots, in one
+ * sweep over the blocks and the appointments ordered by start.  An opening
+ * must start on the slot grid and cover whole free slots, so a free run of
+ * k slots of duration d holds floor(k / ceil(L / d)) openings of length L,
+ * as in the CapacityIndex.  This costs O(slots + appts), plus
+ * O(appts log appts) for a day whose appointments are not ordered by start.
+ */
+
+//package thirdnextappointment;
+
+import java.util.Arrays;
+
+public class BookingIntervals {
+
+    /**
+     * Counts, for each appointment length, the openings of a single
+     * schedule day.
+     * @param template decoded template of the day
+     * @param apptDay appointments booked on the day
+     * @param apptLengths in minutes
+     * @param numAppts receives the number of openings of each length
+     * @param data work space, with room for 2 + template.slots values
+     */
+    static void countOpenings(TemplateCache.Template template, AppointmentIndex.Day apptDay, int[] apptLengths, int[] numAppts, int[] data) {
+        int length = addRuns(template, apptDay, data, 0);
+        int duration = template.duration;
+        for (int i = 0; i < apptLengths.length; i++) {
+            numAppts[i] = 0;
+            if (duration > 0) {
+                int slotsPerAppt = (apptLengths[i] + duration - 1) / duration;
+                for (int run = 2; run < length; run++) {
+                    numAppts[i] += data[run] / slotsPerAppt;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the duration, run count and free slots of each run of free
+     * slots of a schedule day, in the entry layout of the CapacityIndex.
+     * @param template decoded template of the day
+     * @param apptDay appointments booked on the day
+     * @param data receives the entry, with room for 2 + template.slots values
+     * @param length values in data before the entry
+     * @return values in data after the entry
+     */
+    static int addRuns(TemplateCache.Template template, AppointmentIndex.Day apptDay, int[] data, int length) {
+        int duration = template.duration;
+        int runsPos = length + 1;
+        data[length] = duration;
+        length += 2;
+        if (duration > 0) {
+            AppointmentIndex.Day appts = byStart(apptDay);
+            int apptPos = 0;
+            // End, exclusive, of the union of the appointments passed so far
+            int busyUntil = 0;
+            int slot = 0;
+            while (slot < template.slots) {
+                if (!template.isBookable(slot)) {
+                    ++slot;
+                    continue;
+                }
+                int blockStart = slot * duration;
+                while (slot < template.slots && template.isBookable(slot)) {
+                    ++slot;
+                }
+                int blockEnd = slot * duration;
+
+                int free = Math.max(blockStart, busyUntil);
+                while (apptPos < appts.count && appts.startMins[apptPos] < blockEnd) {
+                    int start = appts.startMins[apptPos];
+                    int end = Math.max(appts.endMins[apptPos], start) + 1;
+                    if (start > free) {
+                        length = addRun(data, length, free, start, duration);
+                    }
+                    free = Math.max(free, end);
+                    busyUntil = Math.max(busyUntil, end);
+                    ++apptPos;
+                }
+                if (free < blockEnd) {
+                    length = addRun(data, length, free, blockEnd, duration);
+                }
+            }
+        }
+        data[runsPos] = length - runsPos - 1;
+        return length;
+    }
+
+    /**
+     * Appends the number of whole slots in the free interval [from, to), if
+     * any.
+     */
+    static private int addRun(int[] data, int length, int from, int to, int duration) {
+        int firstSlotMin = (from + duration - 1) / duration * duration;
+        if (to - firstSlotMin >= duration) {
+            data[length++] = (to - firstSlotMin) / duration;
+        }
+        return length;
+    }
+
+    /**
+     * @param apptDay
+     * @return the day, or a copy ordered by start time if it is not
+     */
+    static private AppointmentIndex.Day byStart(AppointmentIndex.Day apptDay) {
+        boolean ordered = true;
+        for (int i = 1; i < apptDay.count && ordered; i++) {
+            ordered = apptDay.startMins[i - 1] <= apptDay.startMins[i];
+        }
+        if (ordered) {
+            return apptDay;
+        }
+        // Pack each appointment as start << 32 | end to sort them together
+        long[] packed = new long[apptDay.count];
+        for (int i = 0; i < apptDay.count; i++) {
+            packed[i] = ((long) apptDay.startMins[i] << 32) | (apptDay.endMins[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed);
+        int[] startMins = new int[apptDay.count];
+        int[] endMins = new int[apptDay.count];
+        for (int i = 0; i < apptDay.count; i++) {
+            startMins[i] = (int) (packed[i] >>> 32);
+            endMins[i] = (int) packed[i];
+        }
+        return new AppointmentIndex.Day(startMins, endMins, apptDay.count);
+    }
+}
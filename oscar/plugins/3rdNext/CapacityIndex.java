@@ -0,0 +1,530 @@
+/*
+ * Persisted index of a provider's free capacity: for every schedule day, the
+ * number of unbooked slots in each run of consecutive bookable slots.
+ *
+ * The slot scan counts an opening of length L each time ceil(L / d) more
+ * unbooked slots of duration d have been seen since the last opening, and
+ * starts over at every unbookable slot, so a run of k unbooked slots holds
+ * floor(k / ceil(L / d)) openings whatever L is.  From the runs the
+ * openings of any appointment length, and so the nth next appointment from
+ * any date, are found without the schedule, templates or appointments.
+ *
+ * The index is a binary file per provider, read through a memory mapping:
+ *
+ *   header    int magic, int version, long config, int fromDay, int dayCount
+ *   days      dayCount times: int epochDay, int dataOffset, long fingerprint
+ *   data      per day: short entries, then per schedule entry: short
+ *             duration, short runs, runs times short unbooked slots
+ *
+ * Days are in date order.  Each day keeps the fingerprint of its schedule
+ * and appointments (see ReportDao.loadFingerprints), so an update recomputes
+ * only the days whose fingerprint has changed; the index is rebuilt when the
+ * templates, schedule symbols or booking model change.  With
+ * bookingmodel=interval the runs are the free runs of BookingIntervals.
+ * An updated index replaces its file like the reports (see AtomicFile), so a
+ * reader never maps a partial index.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class CapacityIndex {
+
+    static final int MAGIC = 0x544E5849; // "TNXI"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+    static final int DAY_BYTES = 16;
+    // Stale days further apart than this have their appointments fetched by
+    // separate range queries
+    static final int RANGE_GAP_DAYS = 31;
+
+    private final ByteBuffer buffer;
+    private final long config;
+    private final int fromDay;
+    private final int dayCount;
+    private final int dataStart;
+
+    private CapacityIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a capacity index of version " + VERSION);
+        }
+        config = buffer.getLong(8);
+        fromDay = buffer.getInt(16);
+        dayCount = buffer.getInt(20);
+        dataStart = HEADER_BYTES + dayCount * DAY_BYTES;
+        if (dayCount < 0 || dataStart > buffer.capacity()) {
+            throw new IOException("Truncated capacity index");
+        }
+    }
+
+    /**
+     * Maps an index file into memory.
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    static CapacityIndex open(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            return new CapacityIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads an index file into the heap, so the file can be replaced while
+     * the index is in use.
+     */
+    static private CapacityIndex read(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read fully
+            }
+            return new CapacityIndex(buffer);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @param indexDir
+     * @param provider
+     * @return the index file of a provider
+     */
+    static File getFile(String indexDir, String provider) {
+        return new File(indexDir, provider.trim() + ".idx");
+    }
+
+    long getConfig() {
+        return config;
+    }
+
+    /**
+     * @return epoch day from which the index holds every day
+     */
+    int getFromDay() {
+        return fromDay;
+    }
+
+    int getDayCount() {
+        return dayCount;
+    }
+
+    int getEpochDay(int day) {
+        return buffer.getInt(HEADER_BYTES + day * DAY_BYTES);
+    }
+
+    long getFingerprint(int day) {
+        return buffer.getLong(HEADER_BYTES + day * DAY_BYTES + 8);
+    }
+
+    /**
+     * @param day
+     * @return whether the day has an active schedule
+     */
+    boolean hasSchedule(int day) {
+        return buffer.getShort(getDataPosition(day)) > 0;
+    }
+
+    /**
+     * @param epochDay
+     * @return index of the first day on or after epochDay, or getDayCount()
+     */
+    int find(int epochDay) {
+        int low = 0;
+        int high = dayCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEpochDay(mid) < epochDay) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param day
+     * @param apptLength in minutes
+     * @return number of openings of the length on the day
+     */
+    int getOpenings(int day, int apptLength) {
+        int position = getDataPosition(day);
+        int entries = buffer.getShort(position);
+        position += 2;
+        int openings = 0;
+        for (int entry = 0; entry < entries; entry++) {
+            int duration = buffer.getShort(position);
+            int runs = buffer.getShort(position + 2);
+            position += 4;
+            if (duration > 0) {
+                int slotsPerAppt = (apptLength + duration - 1) / duration;
+                for (int run = 0; run < runs; run++) {
+                    openings += buffer.getShort(position + run * 2) / slotsPerAppt;
+                }
+            }
+            position += runs * 2;
+        }
+        return openings;
+    }
+
+    /**
+     * @param epochDay report date
+     * @param nth
+     * @param apptLength in minutes
+     * @return epoch day of the nth next available appointment, or -1 if
+     * there is none in the index
+     */
+    int findNthNext(int epochDay, int nth, int apptLength) {
+        int numAppts = 0;
+        for (int day = find(epochDay); day < dayCount; day++) {
+            numAppts += getOpenings(day, apptLength);
+            if (numAppts >= nth) {
+                return getEpochDay(day);
+            }
+        }
+        return -1;
+    }
+
+    private int getDataPosition(int day) {
+        return dataStart + buffer.getInt(HEADER_BYTES + day * DAY_BYTES + 4);
+    }
+
+    /**
+     * @param day
+     * @return the stored data of a day
+     */
+    private short[] getData(int day) {
+        int position = getDataPosition(day);
+        int length = 1;
+        int entries = buffer.getShort(position);
+        for (int entry = 0; entry < entries; entry++) {
+            length += 2 + buffer.getShort(position + length * 2 + 2);
+        }
+        short[] data = new short[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = buffer.getShort(position + i * 2);
+        }
+        return data;
+    }
+
+    /**
+     * @param templates
+     * @return fingerprint of what the index depends on besides the schedule
+     * and appointments
+     */
+    static long getConfig(TemplateCache templates) {
+        long config = Arrays.toString(templates.getSchedSymbols()).hashCode() * 0x9E3779B97F4A7C15L + templates.getFingerprint();
+        return templates.isIntervalModel() ? config ^ 0xC2B2AE3D27D4EB4FL : config;
+    }
+
+    /**
+     * Brings the index of a provider up to date with the database from
+     * dateFrom, or from where the index already starts if that is earlier.
+     * Only days whose fingerprint has changed are recomputed, and the file
+     * is only rewritten if a day changed.
+     * @param dao
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param templates
+     * @param file
+     * @return the updated index
+     * @throws SQLException
+     * @throws IOException if the index cannot be written
+     */
+    static CapacityIndex update(ReportDao dao, String provider, String dateFrom, TemplateCache templates, File file) throws SQLException, IOException {
+        long config = getConfig(templates);
+        int from = ReportDate.toEpochDay(dateFrom);
+        CapacityIndex previous = null;
+        if (file.exists()) {
+            try {
+                previous = read(file);
+            } catch (IOException e) {
+                // Rebuilt below
+                e.printStackTrace(System.out);
+            }
+        }
+        if (previous != null && previous.config == config && previous.fromDay <= from) {
+            from = previous.fromDay;
+        } else {
+            previous = null;
+        }
+
+        TreeMap<String, Long> fingerprints = new TreeMap<String, Long>();
+        dao.loadFingerprints(provider, ReportDate.toDateString(from), fingerprints);
+
+        TreeMap<Integer, short[]> days = new TreeMap<Integer, short[]>();
+        ArrayList<String> staleDates = new ArrayList<String>();
+        int previousDay = 0;
+        for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+            int epochDay = ReportDate.toEpochDay(entry.getKey());
+            if (previous != null) {
+                previousDay = previous.find(epochDay);
+            }
+            if (previous != null && previousDay < previous.dayCount && previous.getEpochDay(previousDay) == epochDay
+                    && previous.getFingerprint(previousDay) == entry.getValue()) {
+                days.put(epochDay, previous.getData(previousDay));
+            } else {
+                staleDates.add(entry.getKey());
+            }
+        }
+        if (staleDates.isEmpty() && previous != null && fingerprints.size() == previous.dayCount) {
+            // Every day of the index is current and none was removed
+            return previous;
+        }
+        if (!staleDates.isEmpty()) {
+            computeDays(dao, provider, templates, staleDates, days);
+        }
+
+        CapacityIndex index = new CapacityIndex(write(config, from, fingerprints, days));
+        save(file, index.buffer);
+        return index;
+    }
+
+    /**
+     * Computes the runs of unbooked slots of schedule days from the database.
+     */
+    static private void computeDays(ReportDao dao, String provider, TemplateCache templates, ArrayList<String> staleDates, TreeMap<Integer, short[]> days) throws SQLException {
+        ArrayList<String> schedDates = new ArrayList<String>();
+        ArrayList<String[]> templateKeys = new ArrayList<String[]>();
+        dao.loadSchedule(provider, staleDates.get(0), schedDates, templateKeys);
+        HashMap<String, ArrayList<TemplateCache.Template>> schedule = new HashMap<String, ArrayList<TemplateCache.Template>>();
+        for (int schedIdx = 0; schedIdx < schedDates.size(); ++schedIdx) {
+            String[] key = templateKeys.get(schedIdx);
+            TemplateCache.Template template = templates.get(dao, key[0], key[1]);
+            if (template == null) {
+                // Template created since the cache was loaded
+                templates.load(dao);
+                template = templates.get(dao, key[0], key[1]);
+            }
+            if (template != null) {
+                ArrayList<TemplateCache.Template> entries = schedule.get(schedDates.get(schedIdx));
+                if (entries == null) {
+                    entries = new ArrayList<TemplateCache.Template>();
+                    schedule.put(schedDates.get(schedIdx), entries);
+                }
+                entries.add(template);
+            }
+        }
+
+        // One appointment query per cluster of nearby stale days
+        StaleDays stale = new StaleDays(dao, staleDates, schedule, templates.isIntervalModel(), days);
+        int rangeStart = 0;
+        for (int i = 1; i <= staleDates.size(); i++) {
+            if (i == staleDates.size() || ReportDate.getDaysBetween(staleDates.get(i - 1), staleDates.get(i)) > RANGE_GAP_DAYS) {
+                stale.last = i - 1;
+                dao.streamAppointments(provider, staleDates.get(rangeStart), staleDates.get(i - 1), stale);
+                stale.finish();
+                rangeStart = i;
+            }
+        }
+    }
+
+    /**
+     * Computes the stale days of a cluster as their appointments are
+     * streamed.
+     */
+    static private class StaleDays implements AppointmentIndex.DayHandler {
+
+        private final ReportDao dao;
+        private final ArrayList<String> staleDates;
+        private final HashMap<String, ArrayList<TemplateCache.Template>> schedule;
+        private final boolean intervalModel;
+        private final TreeMap<Integer, short[]> days;
+        private int[] data = new int[64];
+        // Next stale day to compute and last one of the cluster
+        int next = 0;
+        int last = -1;
+
+        StaleDays(ReportDao dao, ArrayList<String> staleDates, HashMap<String, ArrayList<TemplateCache.Template>> schedule, boolean intervalModel, TreeMap<Integer, short[]> days) {
+            this.dao = dao;
+            this.staleDates = staleDates;
+            this.schedule = schedule;
+            this.intervalModel = intervalModel;
+            this.days = days;
+        }
+
+        public void day(String date, AppointmentIndex.Day apptDay) {
+            while (next <= last && staleDates.get(next).compareTo(date) < 0) {
+                compute(staleDates.get(next++), AppointmentIndex.Day.EMPTY);
+            }
+            if (next <= last && staleDates.get(next).equals(date)) {
+                compute(staleDates.get(next++), apptDay);
+            }
+        }
+
+        /**
+         * Computes the days of the cluster after the last with appointments.
+         */
+        void finish() {
+            while (next <= last) {
+                compute(staleDates.get(next++), AppointmentIndex.Day.EMPTY);
+            }
+        }
+
+        private void compute(String date, AppointmentIndex.Day apptDay) {
+            ArrayList<TemplateCache.Template> entries = schedule.get(date);
+            int length = 1;
+            data[0] = entries != null ? entries.size() : 0;
+            if (entries != null) {
+                for (TemplateCache.Template template : entries) {
+                    if (length + 2 + template.slots > data.length) {
+                        data = Arrays.copyOf(data, (length + 2 + template.slots) * 2);
+                    }
+                    if (intervalModel) {
+                        length = BookingIntervals.addRuns(template, apptDay, data, length);
+                    } else {
+                        length = addRuns(template, apptDay, data, length);
+                    }
+                    if (dao.getMetrics() != null) {
+                        dao.getMetrics().recordDayCounted();
+                    }
+                }
+            }
+            short[] day = new short[length];
+            for (int i = 0; i < length; i++) {
+                day[i] = (short) data[i];
+            }
+            days.put(ReportDate.toEpochDay(date), day);
+        }
+    }
+
+    /**
+     * Appends the duration, run count and unbooked slots of each run of
+     * bookable slots of a schedule day, walking the slots as
+     * ProviderTimeline.countOpenings does.
+     * @param template decoded template of the day
+     * @param apptDay appointments booked on the day
+     * @param data receives the entry, with room for 2 + template.slots values
+     * @param length values in data before the entry
+     * @return values in data after the entry
+     */
+    static int addRuns(TemplateCache.Template template, AppointmentIndex.Day apptDay, int[] data, int length) {
+        int duration = template.duration;
+        int runsPos = length + 1;
+        data[length] = duration;
+        length += 2;
+        int apptPos = 0;
+        int latestApptEnd = 0;
+        int unbooked = 0;
+        for (int slot = 0, iTotalMin = 0; slot < template.slots; ++slot, iTotalMin += duration) {
+            while (apptPos < apptDay.count && apptDay.startMins[apptPos] == iTotalMin) {
+                if (apptDay.endMins[apptPos] > latestApptEnd) {
+                    latestApptEnd = apptDay.endMins[apptPos];
+                }
+                ++apptPos;
+            }
+
+            if (template.isBookable(slot)) {
+                if (iTotalMin > latestApptEnd) {
+                    ++unbooked;
+                }
+            } else if (unbooked > 0) {
+                data[length++] = unbooked;
+                unbooked = 0;
+            }
+        }
+        if (unbooked > 0) {
+            data[length++] = unbooked;
+        }
+        data[runsPos] = length - runsPos - 1;
+        return length;
+    }
+
+    static private ByteBuffer write(long config, int fromDay, TreeMap<String, Long> fingerprints, TreeMap<Integer, short[]> days) {
+        int dataBytes = 0;
+        for (short[] day : days.values()) {
+            dataBytes += day.length * 2;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + days.size() * DAY_BYTES + dataBytes);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(config).putInt(fromDay).putInt(days.size());
+        int dataPosition = HEADER_BYTES + days.size() * DAY_BYTES;
+        int offset = 0;
+        for (Map.Entry<String, Long> entry : fingerprints.entrySet()) {
+            short[] day = days.get(ReportDate.toEpochDay(entry.getKey()));
+            buffer.putInt(ReportDate.toEpochDay(entry.getKey())).putInt(offset).putLong(entry.getValue());
+            for (int i = 0; i < day.length; i++) {
+                buffer.putShort(dataPosition + offset + i * 2, day[i]);
+            }
+            offset += day.length * 2;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    static private void save(File target, ByteBuffer buffer) throws IOException {
+        AtomicFile file = AtomicFile.create(target);
+        try {
+            OutputStream out = file.getStream();
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+            out.close();
+            file.commit();
+        } finally {
+            file.abort();
+        }
+    }
+
+    /**
+     * Answers an ad hoc question from an index without the database:
+     *
+     * java CapacityIndex indexdir=index/ provider=110 date=2015-03-10 [nth=3] [apptlength=15]
+     */
+    public static void main(String[] args) throws IOException {
+        String indexDir = null;
+        String provider = null;
+        String date = null;
+        int nth = 3;
+        int apptLength = 15;
+        for (String arg : args) {
+            if (arg.startsWith("indexdir=")) {
+                indexDir = arg.substring("indexdir=".length());
+            } else if (arg.startsWith("provider=")) {
+                provider = arg.substring("provider=".length());
+            } else if (arg.startsWith("date=")) {
+                date = arg.substring("date=".length());
+            } else if (arg.startsWith("nth=")) {
+                nth = ReportSettings.parsePositive(arg.substring("nth=".length()));
+            } else if (arg.startsWith("apptlength=")) {
+                apptLength = ReportSettings.parsePositive(arg.substring("apptlength=".length()));
+            } else {
+                System.out.println("Parameter [" + arg + "] is not a valid index parameter");
+            }
+        }
+        if (indexDir == null || provider == null || date == null || nth < 1 || apptLength < 1) {
+            System.out.println("Usage: java CapacityIndex indexdir=<dir> provider=<number> date=<yyyy-MM-dd> [nth=3] [apptlength=15]");
+            return;
+        }
+
+        CapacityIndex index = open(getFile(indexDir, provider));
+        int epochDay = ReportDate.toEpochDay(date);
+        if (epochDay < index.fromDay) {
+            System.out.println("The index of provider " + provider + " starts at " + ReportDate.toDateString(index.fromDay));
+            return;
+        }
+        long start = System.nanoTime();
+        int nthDay = index.findNthNext(epochDay, nth, apptLength);
+        long nanos = System.nanoTime() - start;
+        String metric = ThirdNextAppointment.getOrdinal(nth) + "next_" + apptLength;
+        System.out.println("{\"clinician\":\"" + provider + "\", \"date\":\"" + date + "\", \"" + metric + "\":" + (nthDay >= 0 ? nthDay - epochDay : -1) + "}");
+        System.out.println("Answered in " + (nanos / 1000) + " us");
+    }
+}
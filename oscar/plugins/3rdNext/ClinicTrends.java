@@ -0,0 +1,272 @@
+/*
+ * Clinic-wide distribution of the results of every report date, kept between
+ * runs so dashboards read a few numbers instead of every historical report.
+ *
+ * While a report is written, each clinician record is added to a
+ * DayHistogram per metric ("3rdnext", "1stnext_20", ...) of its date.  The
+ * state file keeps those histograms for all report dates, one line per date
+ * and metric, and is replaced like the reports (see AtomicFile); a rewritten
+ * date replaces its histograms.  From them the summary gives, for each
+ * metric, the min, median, p90, max and not found count over trailing
+ * windows of the latest report dates, each merged from the histograms of its
+ * dates, with the median and p90 of the window before it for the trend.
+ *
+ * The summary goes to metricsdir, or to trendsummary, not to reportdir, so
+ * it is not shipped with the reports.
+ *
+ * java ClinicTrends trends=<file> archive=<file> [trendwindows=1,4,13] [trendsummary=<file>]
+ * rebuilds the state file from a result archive.
+ */
+
+//package thirdnextappointment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ClinicTrends {
+
+    static final int[] DEFAULT_WINDOWS = { 1, 4, 13 };
+
+    /**
+     * The histograms of one report date, by metric in report order.
+     */
+    static class DateStats {
+
+        final LinkedHashMap<String, DayHistogram> metrics = new LinkedHashMap<String, DayHistogram>();
+
+        /**
+         * Adds the days of every metric of a clinician record.
+         * @param clinicianJson as ThirdNextAppointment writes it
+         */
+        void add(String clinicianJson) {
+            ResultArchive.Record record = ResultArchive.parse(clinicianJson);
+            for (int m = 0; record.metrics != null && m < record.metrics.length; m++) {
+                DayHistogram histogram = metrics.get(record.metrics[m]);
+                if (histogram == null) {
+                    histogram = new DayHistogram();
+                    metrics.put(record.metrics[m], histogram);
+                }
+                histogram.add(record.days[m]);
+            }
+        }
+    }
+
+    private final String file;
+    private final TreeMap<String, DateStats> dates = new TreeMap<String, DateStats>();
+
+    private ClinicTrends(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the state file, or starts an empty one if it does not exist.
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    static ClinicTrends load(String file) throws IOException {
+        ClinicTrends trends = new ClinicTrends(file);
+        File f = new File(file);
+        if (!f.exists()) {
+            return trends;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                ++lineNo;
+                String[] fields = line.split("\t");
+                try {
+                    if (fields.length != 3) {
+                        throw new NumberFormatException(line);
+                    }
+                    trends.getDate(fields[0]).metrics.put(fields[1], DayHistogram.parse(fields[2]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + " has a malformed line " + lineNo);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return trends;
+    }
+
+    private DateStats getDate(String date) {
+        DateStats stats = dates.get(date);
+        if (stats == null) {
+            stats = new DateStats();
+            dates.put(date, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Adds or replaces the histograms of a report date.
+     * @param date in format "yyyy-MM-dd"
+     * @param stats
+     */
+    void put(String date, DateStats stats) {
+        dates.put(date, stats);
+    }
+
+    /**
+     * @return the report dates held, oldest first
+     */
+    List<String> getDates() {
+        return new ArrayList<String>(dates.keySet());
+    }
+
+    /**
+     * @param date in format "yyyy-MM-dd"
+     * @param metric
+     * @return the histogram of the metric on the date, or null if there is
+     * none
+     */
+    DayHistogram getHistogram(String date, String metric) {
+        DateStats stats = dates.get(date);
+        return stats != null ? stats.metrics.get(metric) : null;
+    }
+
+    /**
+     * Merges the histograms of a metric over consecutive report dates.
+     * @param metric
+     * @param from index of the first date
+     * @param to index after the last date
+     * @return
+     */
+    DayHistogram merge(String metric, int from, int to) {
+        DayHistogram merged = new DayHistogram();
+        List<String> dateList = getDates();
+        for (int d = Math.max(0, from); d < to; d++) {
+            DayHistogram histogram = getHistogram(dateList.get(d), metric);
+            if (histogram != null) {
+                merged.merge(histogram);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Writes the state file.
+     * @throws IOException
+     */
+    void save() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, DateStats> entry : dates.entrySet()) {
+            for (Map.Entry<String, DayHistogram> metric : entry.getValue().metrics.entrySet()) {
+                sb.append(entry.getKey()).append('\t').append(metric.getKey()).append('\t').append(metric.getValue()).append('\n');
+            }
+        }
+        AtomicFile.write(new File(file), sb.toString());
+    }
+
+    /**
+     * Writes the summary of the latest report date as JSON, with one window
+     * per length for each metric of that date.
+     * @param target
+     * @param clinicName
+     * @param windows numbers of report dates in each window
+     * @throws IOException
+     */
+    void writeSummary(File target, String clinicName, int[] windows) throws IOException {
+        AtomicFile.write(target, toJson(clinicName, windows));
+    }
+
+    String toJson(String clinicName, int[] windows) {
+        List<String> dateList = getDates();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"clinic\":\"").append(clinicName).append("\", \"reportdate\":");
+        if (dateList.isEmpty()) {
+            return sb.append("null, \"metrics\":[]}\n").toString();
+        }
+        int last = dateList.size();
+        sb.append('"').append(dateList.get(last - 1)).append("\", \"metrics\":[");
+        String metricSeparator = "\n";
+        for (String metric : dates.get(dateList.get(last - 1)).metrics.keySet()) {
+            sb.append(metricSeparator).append("{\"metric\":\"").append(metric).append("\", \"windows\":[");
+            String windowSeparator = "";
+            for (int window : windows) {
+                int first = Math.max(0, last - window);
+                DayHistogram current = merge(metric, first, last);
+                sb.append(windowSeparator).append("{\"dates\":").append(last - first);
+                sb.append(", \"from\":\"").append(dateList.get(first)).append("\", \"to\":\"").append(dateList.get(last - 1)).append('"');
+                sb.append(", \"found\":").append(current.getFound()).append(", \"notfound\":").append(current.getNotFound());
+                appendDays(sb, "min", current, current.getMin());
+                appendDays(sb, "median", current, current.getQuantile(0.5));
+                appendDays(sb, "p90", current, current.getQuantile(0.9));
+                appendDays(sb, "max", current, current.getMax());
+                DayHistogram previous = merge(metric, first - window, first);
+                appendDays(sb, "previousmedian", previous, previous.getQuantile(0.5));
+                appendDays(sb, "previousp90", previous, previous.getQuantile(0.9));
+                sb.append('}');
+                windowSeparator = ", ";
+            }
+            sb.append("]}");
+            metricSeparator = ", \n";
+        }
+        return sb.append("\n]}\n").toString();
+    }
+
+    /**
+     * Appends a day value, null if the histogram has no days found.
+     */
+    static private void appendDays(StringBuilder sb, String name, DayHistogram histogram, int days) {
+        sb.append(", \"").append(name).append("\":").append(histogram.getFound() > 0 ? String.valueOf(days) : "null");
+    }
+
+    /**
+     * @param dir metrics directory
+     * @param clinicName
+     * @return the default summary file of the clinic
+     */
+    static File getSummaryFile(String dir, String clinicName) {
+        return new File(dir, "thirdnextappt_" + clinicName + "_trends.json");
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trendFile = null;
+        String archiveFile = null;
+        String summaryFile = null;
+        int[] windows = DEFAULT_WINDOWS;
+        for (String arg : args) {
+            if (arg.startsWith("trends=")) {
+                trendFile = arg.substring("trends=".length());
+            } else if (arg.startsWith("archive=")) {
+                archiveFile = arg.substring("archive=".length());
+            } else if (arg.startsWith("trendsummary=")) {
+                summaryFile = arg.substring("trendsummary=".length());
+            } else if (arg.startsWith("trendwindows=")) {
+                windows = ReportSettings.parsePositiveList(arg.substring("trendwindows=".length()));
+            } else {
+                System.out.println("Parameter [" + arg + "] is not a valid trends parameter");
+            }
+        }
+        if (trendFile == null || archiveFile == null || windows == null) {
+            System.out.println("java ClinicTrends trends=<file> archive=<file> [trendwindows=1,4,13] [trendsummary=<file>]");
+            return;
+        }
+
+        ResultArchive archive = ResultArchive.read(new File(archiveFile));
+        ClinicTrends trends = new ClinicTrends(trendFile);
+        for (String date : archive.getDates()) {
+            DateStats stats = new DateStats();
+            for (ResultArchive.Record record : archive.getRecords(date)) {
+                stats.add(record.toJson());
+            }
+            trends.put(date, stats);
+        }
+        trends.save();
+        File summary = summaryFile != null ? new File(summaryFile) : getSummaryFile(".", archive.getClinic());
+        trends.writeSummary(summary, archive.getClinic(), windows);
+        System.out.println("Rebuilt " + trendFile + " from " + archive.getDates().size() + " report date(s); summary in " + summary);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Fixed-size pool of JDBC connections shared by the report workers.
+ *
+ * Connections are opened up front with ThirdNextAppointment.getDBConnection
+ * so a misconfigured database is reported once, before any work starts.
+ * Each connection is handed out wrapped in its ReportDao, so the prepared
+ * statements of a connection are reused by every unit of work run on it.
+ * A worker borrows a DAO for one unit of work and hands it back.  A
+ * connection that has been idle for a while is checked before it is handed
+ * out and reopened if the server has dropped it, so a long-running service
+ * survives MySQL's wait_timeout.
+ *
+ * Pools of several databases can share a limit on the connections in use at
+ * once across all of them, so a fleet of clinics does not overload the host.
+ *
+ * With a snapshot directory configured the pool instead holds SnapshotDaos
+ * answering from the snapshot, which is read once when the pool is opened.
+ */
+
+//package thirdnextappointment;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+public class ConnectionPool {
+
+    // Connections idle for longer than this are checked before reuse
+    static final long VALIDATE_AFTER_MILLIS = 60 * 1000;
+
+    private final String dbUrl;
+    private final String user;
+    private final String pass;
+    private final ArrayList<ReportDao> daos = new ArrayList<ReportDao>();
+    private final BlockingQueue<ReportDao> idle;
+    private final Semaphore limit;
+    private volatile RunMetrics metrics;
+
+    private ConnectionPool(String dbUrl, String user, String pass, int size, Semaphore limit) {
+        this.dbUrl = dbUrl;
+        this.user = user;
+        this.pass = pass;
+        this.limit = limit;
+        idle = new ArrayBlockingQueue<ReportDao>(size);
+    }
+
+    /**
+     * Opens a pool of connections to the database of the settings, or of DAOs
+     * reading their snapshot.
+     * @param settings
+     * @param limit permits shared with other pools, or null
+     * @return the pool, or null if any connection could not be opened or the
+     * snapshot could not be read
+     */
+    static ConnectionPool open(ReportSettings settings, Semaphore limit) {
+        if (settings.snapshotDir == null) {
+            return open(settings.dbUrl, settings.dbUser, settings.dbPassword, settings.parallelism, limit);
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.load(settings.snapshotDir, settings.providers);
+        } catch (IOException e) {
+            System.out.println("Cannot read the snapshot in " + settings.snapshotDir + ":");
+            e.printStackTrace(System.out);
+            return null;
+        }
+        int size = Math.max(1, settings.parallelism);
+        ConnectionPool pool = new ConnectionPool(null, null, null, size, limit);
+        for (int i = 0; i < size; i++) {
+            ReportDao dao = new SnapshotDao(snapshot);
+            pool.daos.add(dao);
+            pool.idle.add(dao);
+        }
+        return pool;
+    }
+
+    /**
+     * Opens a pool of connections.
+     * @param dbUrl
+     * @param user
+     * @param pass
+     * @param size number of connections, at least one
+     * @return the pool, or null if any connection could not be opened
+     */
+    static ConnectionPool open(String dbUrl, String user, String pass, int size) {
+        return open(dbUrl, user, pass, size, null);
+    }
+
+    /**
+     * Opens a pool of connections whose use counts against a shared limit.
+     * @param dbUrl
+     * @param user
+     * @param pass
+     * @param size number of connections, at least one
+     * @param limit permits shared with other pools, one held per connection
+     * in use, or null for no shared limit
+     * @return the pool, or null if any connection could not be opened
+     */
+    static ConnectionPool open(String dbUrl, String user, String pass, int size, Semaphore limit) {
+        ConnectionPool pool = new ConnectionPool(dbUrl, user, pass, Math.max(1, size), limit);
+        for (int i = 0; i < Math.max(1, size); i++) {
+            Connection conn = ThirdNextAppointment.getDBConnection(dbUrl, user, pass);
+            if (conn == null) {
+                pool.close();
+                return null;
+            }
+            ReportDao dao = new ReportDao(conn);
+            pool.daos.add(dao);
+            pool.idle.add(dao);
+        }
+        return pool;
+    }
+
+    int size() {
+        return daos.size();
+    }
+
+    /**
+     * @param metrics where the queries of borrowed connections are recorded
+     * from now on, or null
+     */
+    void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Borrows a connection, waiting for one to be released if all are in use
+     * or the shared limit is reached.
+     * @return the DAO of the connection
+     * @throws InterruptedException
+     */
+    ReportDao acquire() throws InterruptedException {
+        if (limit != null) {
+            limit.acquire();
+        }
+        ReportDao dao;
+        try {
+            dao = idle.take();
+        } catch (InterruptedException e) {
+            if (limit != null) {
+                limit.release();
+            }
+            throw e;
+        }
+        if (System.currentTimeMillis() - dao.getLastUsed() > VALIDATE_AFTER_MILLIS && !dao.ping()) {
+            Connection conn = ThirdNextAppointment.getDBConnection(dbUrl, user, pass);
+            if (conn != null) {
+                dao.close();
+                try {
+                    dao.getConnection().close();
+                } catch (SQLException se) {
+                    // already broken
+                }
+                ReportDao reopened = new ReportDao(conn);
+                synchronized (this) {
+                    daos.set(daos.indexOf(dao), reopened);
+                }
+                dao = reopened;
+            }
+        }
+        dao.setMetrics(metrics);
+        return dao;
+    }
+
+    void release(ReportDao dao) {
+        dao.setLastUsed(System.currentTimeMillis());
+        idle.offer(dao);
+        if (limit != null) {
+            limit.release();
+        }
+    }
+
+    synchronized void close() {
+        for (ReportDao dao : daos) {
+            dao.close();
+            if (dao.getConnection() == null) {
+                continue;
+            }
+            try {
+                dao.getConnection().close();
+            } catch (SQLException se) {
+                se.printStackTrace(System.out);
+            }
+        }
+        daos.clear();
+        idle.clear();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Exact distribution of the days to the nth next available appointment of
+ * a clinic's clinicians: how many clinicians have each day count, and how
+ * many have none found (-1).
+ *
+ * Day counts are small integers bounded by the schedule, so every value is
+ * counted exactly in one array instead of being estimated by a sketch.
+ * Histograms of any clinicians or report dates merge by adding their
+ * counts, and min, max and quantiles of the merged data are exact.
+ */
+
+//package thirdnextappointment;
+
+import java.util.Arrays;
+
+public class DayHistogram {
+
+    // Clinicians with each day count, by days
+    private long[] counts = new long[16];
+    private int size = 0;
+    private long found = 0;
+    private long notFound = 0;
+
+    /**
+     * @param days days to the appointment, or -1 if none was found
+     */
+    void add(int days) {
+        add(days, 1);
+    }
+
+    private void add(int days, long count) {
+        if (days < 0) {
+            notFound += count;
+            return;
+        }
+        if (days >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(days + 1, counts.length * 2));
+        }
+        counts[days] += count;
+        size = Math.max(size, days + 1);
+        found += count;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     * @param other
+     */
+    void merge(DayHistogram other) {
+        for (int days = 0; days < other.size; days++) {
+            if (other.counts[days] > 0) {
+                add(days, other.counts[days]);
+            }
+        }
+        notFound += other.notFound;
+    }
+
+    /**
+     * @return the number of clinicians with an appointment found
+     */
+    long getFound() {
+        return found;
+    }
+
+    /**
+     * @return the number of clinicians with no appointment found
+     */
+    long getNotFound() {
+        return notFound;
+    }
+
+    /**
+     * @return the fewest days found, or -1 if none was found
+     */
+    int getMin() {
+        return getQuantile(0);
+    }
+
+    /**
+     * @return the most days found, or -1 if none was found
+     */
+    int getMax() {
+        return found > 0 ? size - 1 : -1;
+    }
+
+    /**
+     * @param q quantile from 0 to 1
+     * @return the days found at the quantile by nearest rank, or -1 if none
+     * was found
+     */
+    int getQuantile(double q) {
+        long rank = Math.max(1, (long) Math.ceil(q * found));
+        long seen = 0;
+        for (int days = 0; days < size; days++) {
+            seen += counts[days];
+            if (seen >= rank) {
+                return days;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the histogram as "notfound|days:count,days:count"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(notFound).append('|');
+        String separator = "";
+        for (int days = 0; days < size; days++) {
+            if (counts[days] > 0) {
+                sb.append(separator).append(days).append(':').append(counts[days]);
+                separator = ",";
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param s a histogram as written by toString
+     * @return
+     * @throws NumberFormatException if s is not a histogram
+     */
+    static DayHistogram parse(String s) {
+        DayHistogram histogram = new DayHistogram();
+        int bar = s.indexOf('|');
+        if (bar < 0) {
+            throw new NumberFormatException("Not a histogram: " + s);
+        }
+        histogram.notFound = Long.parseLong(s.substring(0, bar));
+        if (bar + 1 < s.length()) {
+            for (String entry : s.substring(bar + 1).split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon < 0) {
+                    throw new NumberFormatException("Not a histogram: " + s);
+                }
+                int days = Integer.parseInt(entry.substring(0, colon));
+                if (days < 0) {
+                    throw new NumberFormatException("Not a histogram: " + s);
+                }
+                histogram.add(days, Long.parseLong(entry.substring(colon + 1)));
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Fleet mode: generates the reports of many clinics, each with its own
+ * OSCAR database, in one JVM.
+ *
+ * Every *.properties file in the clinics directory configures one clinic.
+ * Its settings override those of ThirdNextAppointment.properties, and the
+ * command-line overrides both.  Clinics run concurrently; each uses at most
+ * its own parallelism connections to its database, and fleetparallelism
+ * caps the connections in use across the whole fleet.
+ *
+ * Each clinic writes to its own reportdir, by default a directory named
+ * after the clinic in the base reportdir.  A providercache, watermarks,
+ * archive, trends or trendsummary file or indexdir that is inherited rather
+ * than set for the clinic gets the clinic name appended, so clinics never
+ * share one.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class FleetRunner {
+
+    private final File clinicsDir;
+    private final int fleetParallelism;
+    private final Properties defaults;
+    private final Properties overrides;
+
+    private FleetRunner(File clinicsDir, int fleetParallelism, Properties defaults, Properties overrides) {
+        this.clinicsDir = clinicsDir;
+        this.fleetParallelism = fleetParallelism;
+        this.defaults = defaults;
+        this.overrides = overrides;
+    }
+
+    /**
+     * Reads the fleet settings.
+     * @param defaults settings shared by all clinics
+     * @param overrides command-line settings, which override every clinic's
+     * @return the runner, or null if a setting is missing or invalid
+     */
+    static FleetRunner create(Properties defaults, Properties overrides) {
+        boolean errorOccurred = false;
+        String clinicsDir = defaults.getProperty("clinicsdir");
+        if (clinicsDir == null || clinicsDir.isEmpty()) {
+            System.err.println("The clinics directory parameter 'clinicsdir' must be set in fleet mode.");
+            errorOccurred = true;
+        } else if (!new File(clinicsDir).isDirectory()) {
+            System.err.println("The clinics directory '" + clinicsDir + "' does not exist.");
+            errorOccurred = true;
+        }
+        int fleetParallelism = Runtime.getRuntime().availableProcessors();
+        String fleetParallelismStr = defaults.getProperty("fleetparallelism");
+        if (fleetParallelismStr != null && !fleetParallelismStr.isEmpty()) {
+            fleetParallelism = ReportSettings.parsePositive(fleetParallelismStr);
+            if (fleetParallelism < 1) {
+                System.err.println("The fleetparallelism parameter is invalid.");
+                System.err.println("  It should be a positive number like 'fleetparallelism=16'");
+                errorOccurred = true;
+            }
+        }
+        if (errorOccurred) {
+            return null;
+        }
+        return new FleetRunner(new File(clinicsDir), fleetParallelism, defaults, overrides);
+    }
+
+    /**
+     * Runs every clinic, waiting for all to finish.  A clinic that fails is
+     * reported and does not stop the others.
+     * @return number of clinics that failed
+     * @throws InterruptedException
+     */
+    int run() throws InterruptedException {
+        File[] files = clinicsDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".properties");
+            }
+        });
+        Arrays.sort(files);
+
+        final Semaphore limit = new Semaphore(fleetParallelism);
+        ExecutorService clinics = Executors.newFixedThreadPool(Math.max(1, Math.min(files.length, fleetParallelism)));
+        ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        try {
+            for (final File file : files) {
+                futures.add(clinics.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return runClinic(file, limit);
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    if (!futures.get(i).get()) {
+                        ++failed;
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("Clinic configuration " + files[i] + " failed:");
+                    e.getCause().printStackTrace(System.out);
+                    ++failed;
+                }
+            }
+            return failed;
+        } finally {
+            clinics.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates the reports of one clinic.
+     * @return false if its configuration is invalid or its database cannot
+     * be reached
+     */
+    private boolean runClinic(File file, Semaphore limit) throws Exception {
+        Properties clinic = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            clinic.load(input);
+        } finally {
+            input.close();
+        }
+        Properties prop = getClinicProperties(clinic);
+
+        System.out.println("Clinic configuration " + file.getName() + ":");
+        ReportSettings settings = ReportSettings.parse(prop);
+        if (settings == null) {
+            return false;
+        }
+        ConnectionPool pool = ConnectionPool.open(settings, limit);
+        if (pool == null) {
+            return false;
+        }
+        ReportRunner runner = new ReportRunner(settings, pool);
+        try {
+            List<String> written = runner.run();
+            System.out.println("Clinic " + settings.clinicName + ": wrote " + written.size() + " report(s) to " + settings.reportDir);
+            return true;
+        } finally {
+            runner.close();
+            pool.close();
+        }
+    }
+
+    /**
+     * @param clinic the clinic's own settings
+     * @return the clinic's settings merged with the defaults and overrides
+     */
+    Properties getClinicProperties(Properties clinic) {
+        Properties prop = new Properties();
+        prop.putAll(defaults);
+        prop.putAll(clinic);
+        prop.putAll(overrides);
+        prop.setProperty("mode", "batch");
+
+        String clinicName = prop.getProperty("clinic", "");
+        if (!clinic.containsKey("reportdir") && !overrides.containsKey("reportdir")) {
+            String reportDir = defaults.getProperty("reportdir", "./reports/");
+            prop.setProperty("reportdir", (reportDir.endsWith("/") ? reportDir : reportDir + "/") + clinicName + "/");
+        }
+        for (String key : new String[] { "providercache", "watermarks", "indexdir", "archive", "trends", "trendsummary" }) {
+            String value = prop.getProperty(key);
+            if (value != null && !value.isEmpty() && !clinic.containsKey(key)) {
+                prop.setProperty(key, value + "." + clinicName);
+            }
+        }
+        return prop;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * CPSID and MSP numbers of the configured providers, looked up with one
+ * query at startup and kept as the pre-rendered JSON fragment used in each
+ * clinician record.
+ *
+ * The numbers almost never change, so the fragments can also be persisted
+ * to a properties file; later runs then only query providers missing from
+ * it.  Delete the file to force a refresh.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+
+public class ProviderCache {
+
+    private final HashMap<String, String> providerInfo = new HashMap<String, String>();
+
+    /**
+     * Looks up the providers that are not already in the cache file, if any.
+     * @param dao
+     * @param providers provider numbers
+     * @param cacheFile persisted cache, or null to always query
+     * @return
+     */
+    static ProviderCache load(ReportDao dao, String[] providers, String cacheFile) {
+        ProviderCache cache = new ProviderCache();
+        if (cacheFile != null) {
+            cache.read(cacheFile);
+        }
+
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String provider : providers) {
+            if (!cache.providerInfo.containsKey(provider.trim())) {
+                missing.add(provider.trim());
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                dao.loadProviders(missing, cache);
+            } catch (SQLException se) {
+                se.printStackTrace(System.out);
+                System.err.println(ReportDao.getProviderSQL(missing.size()) + " " + missing);
+            }
+            if (cacheFile != null) {
+                cache.write(cacheFile);
+            }
+        }
+        return cache;
+    }
+
+    void put(String provider, String cpsId, String mspNo) {
+        providerInfo.put(provider, "\"cpsid\":\"" + cpsId + "\", \"msp\":\"" + mspNo + "\"");
+    }
+
+    /**
+     * @param provider
+     * @return the "cpsid" and "msp" JSON fields of the provider, or null if
+     * the provider does not exist
+     */
+    String getProviderInfo(String provider) {
+        return providerInfo.get(provider.trim());
+    }
+
+    private void read(String cacheFile) {
+        File f = new File(cacheFile);
+        if (!f.exists()) {
+            return;
+        }
+        Properties prop = new Properties();
+        InputStream input = null;
+        try {
+            input = new FileInputStream(f);
+            prop.load(input);
+            for (String provider : prop.stringPropertyNames()) {
+                providerInfo.put(provider, prop.getProperty(provider));
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+    }
+
+    private void write(String cacheFile) {
+        Properties prop = new Properties();
+        for (String provider : providerInfo.keySet()) {
+            prop.setProperty(provider, providerInfo.get(provider));
+        }
+        OutputStream output = null;
+        try {
+            output = new FileOutputStream(cacheFile);
+            prop.store(output, "Provider numbers cached by ThirdNextAppointment");
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Schedule and appointment timeline of one provider, loaded once and swept
+ * forward to find the nth next available appointment for any number of
+ * report dates.
+ *
+ * The number of openings on a schedule day does not depend on the report
+ * date the search started from, so each day is scanned at most once and the
+ * result for every report date is found with a single forward pass over the
+ * schedule.  A multi-year backfill therefore costs time linear in the number
+ * of schedule days rather than one rescan of the future per report date.
+ *
+ * A timeline can also be loaded from a CapacityIndex, which already holds
+ * the openings of every schedule day.
+ */
+
+//package thirdnextappointment;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+public class ProviderTimeline {
+
+    static final int DAY_MINS = 24 * 60;
+    // Number of schedule days covered by the first appointment range query
+    static final int APPT_WINDOW_DAYS = 16;
+
+    private final ReportDao dao;
+    private final String provider;
+    private final int[] apptLengths;
+    private boolean intervalModel = false;
+    // Work space of BookingIntervals
+    private int[] runs = new int[0];
+    private final ArrayList<String> schedDates = new ArrayList<String>();
+    private final ArrayList<TemplateCache.Template> schedTemplates = new ArrayList<TemplateCache.Template>();
+    // Day of each schedule day in the capacity index, if loaded from one
+    private CapacityIndex index;
+    private int[] indexDays;
+    // Openings per appointment length and schedule day, -1 until counted
+    private int[][] openings;
+    private int apptWindow = APPT_WINDOW_DAYS;
+    // Schedule days whose openings have been counted
+    private int counted = 0;
+
+    private ProviderTimeline(ReportDao dao, String provider, int[] apptLengths) {
+        this.dao = dao;
+        this.provider = provider;
+        this.apptLengths = apptLengths;
+    }
+
+    /**
+     * Loads the active schedule days of a provider from dateFrom onwards.
+     * Appointments are fetched lazily, as the sweep reaches them.
+     * @param dao
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param templates
+     * @param apptLengths appointment lengths to count openings for, in
+     * minutes
+     * @return
+     * @throws SQLException
+     */
+    static ProviderTimeline load(ReportDao dao, String provider, String dateFrom, TemplateCache templates, int[] apptLengths) throws SQLException {
+        ProviderTimeline timeline = new ProviderTimeline(dao, provider, apptLengths);
+        timeline.intervalModel = templates.isIntervalModel();
+        ArrayList<String> schedDates = new ArrayList<String>();
+        ArrayList<String[]> templateKeys = new ArrayList<String[]>();
+        dao.loadSchedule(provider, dateFrom, schedDates, templateKeys);
+        for (int schedIdx = 0; schedIdx < schedDates.size(); ++schedIdx) {
+            String[] key = templateKeys.get(schedIdx);
+            TemplateCache.Template template = templates.get(dao, key[0], key[1]);
+            if (template == null) {
+                // Template created since the cache was loaded
+                templates.load(dao);
+                template = templates.get(dao, key[0], key[1]);
+            }
+            if (template != null) {
+                timeline.schedDates.add(schedDates.get(schedIdx));
+                timeline.schedTemplates.add(template);
+            }
+        }
+        timeline.openings = new int[apptLengths.length][timeline.schedDates.size()];
+        Arrays.fill(timeline.openings[0], -1);
+        return timeline;
+    }
+
+    /**
+     * Loads the schedule days of a provider from dateFrom onwards from a
+     * capacity index.
+     * @param index
+     * @param dao used for the metrics only
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param apptLengths appointment lengths to count openings for, in
+     * minutes
+     * @return
+     */
+    static ProviderTimeline load(CapacityIndex index, ReportDao dao, String provider, String dateFrom, int[] apptLengths) {
+        ProviderTimeline timeline = new ProviderTimeline(dao, provider, apptLengths);
+        timeline.index = index;
+        timeline.indexDays = new int[index.getDayCount()];
+        int numSched = 0;
+        for (int day = index.find(ReportDate.toEpochDay(dateFrom)); day < index.getDayCount(); day++) {
+            if (index.hasSchedule(day)) {
+                timeline.schedDates.add(ReportDate.toDateString(index.getEpochDay(day)));
+                timeline.indexDays[numSched++] = day;
+            }
+        }
+        timeline.openings = new int[apptLengths.length][numSched];
+        Arrays.fill(timeline.openings[0], -1);
+        return timeline;
+    }
+
+    /**
+     * Finds, for each report date, the schedule date on which the nth next
+     * available appointment of one of the lengths falls.  The openings of a
+     * schedule day are counted for all lengths at once and reused by every
+     * call.
+     * @param reportDates in format "yyyy-MM-dd", in any order
+     * @param nth
+     * @param lengthIdx index of the appointment length in apptLengths
+     * @return map from report date to the date of the nth next available
+     * appointment; report dates with no such appointment are absent
+     * @throws SQLException
+     */
+    HashMap<String, String> findNthNext(List<String> reportDates, int nth, int lengthIdx) throws SQLException {
+        ArrayList<String> sorted = new ArrayList<String>(reportDates);
+        Collections.sort(sorted);
+
+        HashMap<String, String> found = new HashMap<String, String>();
+        int numSched = schedDates.size();
+        int first = 0;  // first schedule day on or after the report date
+        int last = 0;   // schedule day on which the nth opening was reached
+        int numAppts = 0; // openings on schedule days first..last-1
+        for (String reportDate : sorted) {
+            while (first < numSched && schedDates.get(first).compareTo(reportDate) < 0) {
+                if (first < last) {
+                    numAppts -= getOpenings(first, lengthIdx);
+                }
+                ++first;
+            }
+            if (last < first) {
+                last = first;
+                numAppts = 0;
+            }
+            while (last < numSched && numAppts + getOpenings(last, lengthIdx) < nth) {
+                numAppts += getOpenings(last, lengthIdx);
+                ++last;
+            }
+            if (last < numSched) {
+                found.put(reportDate, schedDates.get(last));
+            }
+            if (dao.getMetrics() != null) {
+                dao.getMetrics().recordDaysScanned(Math.min(last + 1, numSched) - first);
+            }
+        }
+        return found;
+    }
+
+    private int getOpenings(int schedIdx, int lengthIdx) throws SQLException {
+        if (openings[0][schedIdx] < 0 && index != null) {
+            for (int i = 0; i < apptLengths.length; i++) {
+                openings[i][schedIdx] = index.getOpenings(indexDays[schedIdx], apptLengths[i]);
+            }
+        } else if (openings[0][schedIdx] < 0) {
+            // Count a run of schedule days at once, doubling the run each
+            // time the sweep outgrows it
+            countThrough(Math.min(schedIdx + apptWindow, schedDates.size()) - 1);
+            apptWindow *= 2;
+        }
+        return openings[lengthIdx][schedIdx];
+    }
+
+    /**
+     * Counts the openings of the schedule days from the first one not
+     * counted yet through lastIdx, merging them with the appointments
+     * streamed by one range query.  Days the sweep skipped are counted too,
+     * since a later sweep may come back to them.
+     */
+    private void countThrough(final int lastIdx) throws SQLException {
+        final int[] numAppts = new int[apptLengths.length];
+        dao.streamAppointments(provider, schedDates.get(counted), schedDates.get(lastIdx), new AppointmentIndex.DayHandler() {
+            public void day(String date, AppointmentIndex.Day apptDay) {
+                while (counted <= lastIdx && schedDates.get(counted).compareTo(date) < 0) {
+                    count(counted++, AppointmentIndex.Day.EMPTY, numAppts);
+                }
+                while (counted <= lastIdx && schedDates.get(counted).equals(date)) {
+                    count(counted++, apptDay, numAppts);
+                }
+            }
+        });
+        while (counted <= lastIdx) {
+            count(counted++, AppointmentIndex.Day.EMPTY, numAppts);
+        }
+    }
+
+    private void count(int schedIdx, AppointmentIndex.Day apptDay, int[] numAppts) {
+        if (intervalModel) {
+            TemplateCache.Template template = schedTemplates.get(schedIdx);
+            if (runs.length < 2 + template.slots) {
+                runs = new int[2 + template.slots];
+            }
+            BookingIntervals.countOpenings(template, apptDay, apptLengths, numAppts, runs);
+        } else {
+            countOpenings(schedTemplates.get(schedIdx), apptDay, apptLengths, numAppts);
+        }
+        if (dao.getMetrics() != null) {
+            dao.getMetrics().recordDayCounted();
+        }
+        for (int i = 0; i < apptLengths.length; i++) {
+            openings[i][schedIdx] = numAppts[i];
+        }
+    }
+
+    /**
+     * Counts, for each appointment length, the unbooked runs of schedule
+     * slots long enough for an appointment on a single schedule day, in one
+     * walk over the slots.
+     * @param template decoded template of the day
+     * @param apptDay appointments booked on the day
+     * @param apptLengths in minutes
+     * @param numAppts receives the number of openings of each length
+     */
+    static void countOpenings(TemplateCache.Template template, AppointmentIndex.Day apptDay, int[] apptLengths, int[] numAppts) {
+        int duration = template.duration;
+        int numLengths = apptLengths.length;
+        int apptPos = 0;
+        int latestApptEnd = 0;
+        int unbooked = 0;
+        // Unbooked minutes since the last opening counted of each length
+        int[] sinceOpening = new int[numLengths];
+        for (int i = 0; i < numLengths; i++) {
+            numAppts[i] = 0;
+        }
+        for (int slot = 0, iTotalMin = 0; slot < template.slots; ++slot, iTotalMin += duration) {
+            while (apptPos < apptDay.count && apptDay.startMins[apptPos] == iTotalMin) {
+                if (apptDay.endMins[apptPos] > latestApptEnd) {
+                    latestApptEnd = apptDay.endMins[apptPos];
+                }
+                ++apptPos;
+            }
+
+            if (template.isBookable(slot)) {
+                if (iTotalMin > latestApptEnd) {
+                    unbooked += duration;
+                    for (int i = 0; i < numLengths; i++) {
+                        if (unbooked - sinceOpening[i] >= apptLengths[i]) {
+                            sinceOpening[i] = unbooked;
+                            ++numAppts[i];
+                        }
+                    }
+                }
+            } else if (unbooked > 0) {
+                unbooked = 0;
+                for (int i = 0; i < numLengths; i++) {
+                    sinceOpening[i] = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * The report dates of a clinic: every date on one of the report weekdays, or
+ * every day, within one or more date ranges, newest first.
+ *
+ * Dates are handled as day numbers counting from 1970-01-01, so walking a
+ * calendar needs no Calendar, Date or date formatter; the only allocation is
+ * the date string of each date produced.  A calendar is immutable, so one
+ * instance can be shared by any number of threads, each with its own
+ * iterator.
+ */
+
+//package thirdnextappointment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class ReportCalendar implements Iterable<String> {
+
+    static final String DAILY = "daily";
+    // Indexed by Calendar day of the week from Calendar.SUNDAY
+    static final String[] WEEKDAY_PREFIXES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+    // Report days of the week, indexed by Calendar.SUNDAY..SATURDAY
+    private final boolean[] weekDays;
+    // Disjoint date ranges as day numbers, newest first: from, to, from, to..
+    private final int[] ranges;
+
+    private ReportCalendar(boolean[] weekDays, int[] ranges) {
+        this.weekDays = weekDays;
+        this.ranges = ranges;
+    }
+
+    /**
+     * @param cadence "daily", or a comma separated list of weekdays, for
+     * example "tuesday" or "mon,thu"
+     * @param earliestDate in format "yyyy-MM-dd"
+     * @return the calendar from earliestDate through today
+     */
+    static ReportCalendar create(String cadence, String earliestDate) {
+        return create(cadence, new int[] { ReportDate.toEpochDay(earliestDate), getToday() });
+    }
+
+    /**
+     * @param cadence "daily", or a comma separated list of weekdays
+     * @param ranges date ranges as day numbers: from, to, from, to..; they
+     * may overlap and be in any order
+     * @return
+     */
+    static ReportCalendar create(String cadence, int[] ranges) {
+        return new ReportCalendar(parseCadence(cadence), mergeRanges(ranges));
+    }
+
+    /**
+     * @param dates comma separated dates and date ranges, for example
+     * "2024-01-02,2024-03-01..2024-03-31"
+     * @return the ranges as day numbers, or null if dates is invalid
+     */
+    static int[] parseRanges(String dates) {
+        String[] parts = dates.split(",");
+        int[] ranges = new int[parts.length * 2];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int dots = part.indexOf("..");
+            String from = dots < 0 ? part : part.substring(0, dots).trim();
+            String to = dots < 0 ? part : part.substring(dots + 2).trim();
+            if (!from.matches("\\d{4}-\\d{2}-\\d{2}") || !to.matches("\\d{4}-\\d{2}-\\d{2}")) {
+                return null;
+            }
+            ranges[2 * i] = ReportDate.toEpochDay(from);
+            ranges[2 * i + 1] = ReportDate.toEpochDay(to);
+            if (ranges[2 * i] > ranges[2 * i + 1]) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @param cadence
+     * @return whether cadence is "daily" or a list of weekday names
+     */
+    static boolean isValidCadence(String cadence) {
+        if (cadence.trim().equalsIgnoreCase(DAILY)) {
+            return true;
+        }
+        for (String day : cadence.split(",")) {
+            if (toWeekDay(day) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param day weekday name or abbreviation, for example "tuesday" or "tue"
+     * @return the Calendar day of the week, or -1 if day does not start with
+     * the first three letters of a weekday
+     */
+    static int toWeekDay(String day) {
+        String matchDay = day.trim().toUpperCase();
+        for (int i = 0; i < WEEKDAY_PREFIXES.length; i++) {
+            if (matchDay.startsWith(WEEKDAY_PREFIXES[i])) {
+                return Calendar.SUNDAY + i;
+            }
+        }
+        return -1;
+    }
+
+    static private boolean[] parseCadence(String cadence) {
+        boolean[] weekDays = new boolean[Calendar.SATURDAY + 1];
+        if (cadence.trim().equalsIgnoreCase(DAILY)) {
+            Arrays.fill(weekDays, Calendar.SUNDAY, Calendar.SATURDAY + 1, true);
+        } else {
+            for (String day : cadence.split(",")) {
+                int weekDay = toWeekDay(day);
+                if (weekDay < 0) {
+                    throw new IllegalArgumentException("Not a weekday: " + day);
+                }
+                weekDays[weekDay] = true;
+            }
+        }
+        return weekDays;
+    }
+
+    static private int[] mergeRanges(int[] ranges) {
+        // Sort range indexes by start, newest first, then merge overlapping
+        // or adjacent ranges
+        Integer[] order = new Integer[ranges.length / 2];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int[] r = ranges;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return r[2 * b] < r[2 * a] ? -1 : (r[2 * b] == r[2 * a] ? 0 : 1);
+            }
+        });
+        ArrayList<int[]> merged = new ArrayList<int[]>();
+        for (int i : order) {
+            int from = ranges[2 * i];
+            int to = ranges[2 * i + 1];
+            if (from > to) {
+                continue;
+            }
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && to >= last[0] - 1) {
+                last[0] = from;
+                last[1] = Math.max(last[1], to);
+            } else {
+                merged.add(new int[] { from, to });
+            }
+        }
+        int[] result = new int[merged.size() * 2];
+        for (int i = 0; i < merged.size(); i++) {
+            result[2 * i] = merged.get(i)[0];
+            result[2 * i + 1] = merged.get(i)[1];
+        }
+        return result;
+    }
+
+    /**
+     * @return today's local date as a day number
+     */
+    static int getToday() {
+        Calendar now = Calendar.getInstance();
+        long millis = now.getTimeInMillis() + now.get(Calendar.ZONE_OFFSET) + now.get(Calendar.DST_OFFSET);
+        return (int) Math.floor(millis / 86400000.0);
+    }
+
+    /**
+     * @param epochDay day number counting from 1970-01-01
+     * @return the day of the week as Calendar.SUNDAY..SATURDAY
+     */
+    static int getWeekDay(int epochDay) {
+        // 1970-01-01 was a Thursday
+        return ((epochDay + 4) % 7 + 7) % 7 + Calendar.SUNDAY;
+    }
+
+    /**
+     * @param calendarWeekDay Calendar.SUNDAY..SATURDAY
+     * @return whether reports are made on that day of the week
+     */
+    boolean isReportWeekDay(int calendarWeekDay) {
+        return weekDays[calendarWeekDay];
+    }
+
+    /**
+     * @param epochDay
+     * @return whether epochDay is a report date
+     */
+    boolean contains(int epochDay) {
+        if (!weekDays[getWeekDay(epochDay)]) {
+            return false;
+        }
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (epochDay >= ranges[i] && epochDay <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the report dates as day numbers, newest first
+     */
+    DayCursor days() {
+        return new DayCursor();
+    }
+
+    /**
+     * @return the report dates in format "yyyy-MM-dd", newest first
+     */
+    public Iterator<String> iterator() {
+        final DayCursor cursor = new DayCursor();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            public String next() {
+                return ReportDate.toDateString(cursor.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the newest report date in format "yyyy-MM-dd", or null if
+     * there are none
+     */
+    String getLatest() {
+        DayCursor cursor = new DayCursor();
+        return cursor.hasNext() ? ReportDate.toDateString(cursor.next()) : null;
+    }
+
+    /**
+     * @return every report date in format "yyyy-MM-dd", newest first
+     */
+    ArrayList<String> toList() {
+        ArrayList<String> dates = new ArrayList<String>();
+        for (String date : this) {
+            dates.add(date);
+        }
+        return dates;
+    }
+
+    /**
+     * Walks the report dates, newest first, as day numbers without boxing.
+     */
+    class DayCursor {
+
+        private int range = 0;
+        private int day;
+
+        DayCursor() {
+            day = ranges.length > 0 ? ranges[1] : 0;
+            seek();
+        }
+
+        boolean hasNext() {
+            return range < ranges.length;
+        }
+
+        int next() {
+            if (range >= ranges.length) {
+                throw new NoSuchElementException();
+            }
+            int result = day;
+            --day;
+            seek();
+            return result;
+        }
+
+        // Moves day back to the next report date, at or before day
+        private void seek() {
+            while (range < ranges.length) {
+                while (day >= ranges[range] && !weekDays[getWeekDay(day)]) {
+                    --day;
+                }
+                if (day >= ranges[range]) {
+                    return;
+                }
+                range += 2;
+                if (range < ranges.length) {
+                    day = ranges[range + 1];
+                }
+            }
+        }
+    }
+}
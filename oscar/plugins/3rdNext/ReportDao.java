@@ -0,0 +1,352 @@
+/*
+ * Data access for the report queries on a single database connection.
+ *
+ * Every query is a parameterized PreparedStatement that is prepared once per
+ * connection and reused for every provider and report date, so MySQL does
+ * not re-parse the SQL and provider numbers and dates are never spliced into
+ * it.  Result sets are closed as soon as they are read and the statements
+ * are closed with the DAO.
+ */
+
+//package thirdnextappointment;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+public class ReportDao {
+
+    static final String TEMPLATE_SQL = "select provider_no, name, timecode from scheduletemplate";
+    static final String SCHEDULE_SQL = "select scheduledate.sdate, scheduletemplate.provider_no, scheduletemplate.name from scheduletemplate, scheduledate where scheduletemplate.name=scheduledate.hour and scheduledate.sdate >= ? and scheduledate.provider_no = ? and scheduledate.status = 'A' and (scheduletemplate.provider_no=scheduledate.provider_no or scheduletemplate.provider_no='Public') order by scheduledate.sdate";
+    static final String APPOINTMENT_WATERMARK_SQL = "select appointment_date, count(*) as appts, max(lastupdatedate) as lastupdate from appointment where provider_no = ? and appointment_date >= ? group by appointment_date";
+    static final String SCHEDULE_WATERMARK_SQL = "select sdate, id, hour, status from scheduledate where provider_no = ? and sdate >= ?";
+    static final String APPOINTMENT_SQL = "select appointment_date, start_time, end_time from appointment where provider_no = ? and status not like '%C%' and appointment_date >= ? and appointment_date <= ? order by appointment_date asc, start_time asc";
+
+    // Rows fetched at a time by drivers other than MySQL when streaming
+    static final int STREAM_FETCH_ROWS = 1000;
+
+    private final Connection conn;
+    private long lastUsed = System.currentTimeMillis();
+    private RunMetrics metrics;
+    private PreparedStatement templateStmt;
+    private PreparedStatement scheduleStmt;
+    private PreparedStatement appointmentStmt;
+    private PreparedStatement appointmentWatermarkStmt;
+    private PreparedStatement scheduleWatermarkStmt;
+    private PreparedStatement scheduleRowsStmt;
+
+    ReportDao(Connection conn) {
+        this.conn = conn;
+    }
+
+    Connection getConnection() {
+        return conn;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * @return the metrics the queries are recorded in, or null
+     */
+    RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void record(String query, long startNanos, long rows) {
+        if (metrics != null) {
+            metrics.recordQuery(query, startNanos, rows);
+        }
+    }
+
+    /**
+     * @return true if the connection still answers a trivial query
+     */
+    boolean ping() {
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeQuery("select 1").close();
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch (SQLException se) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads every schedule template into a cache.
+     * @param templates
+     * @throws SQLException
+     */
+    void loadTemplates(TemplateCache templates) throws SQLException {
+        if (templateStmt == null) {
+            templateStmt = conn.prepareStatement(TEMPLATE_SQL);
+        }
+        long start = System.nanoTime();
+        int rows = 0;
+        ResultSet rs = templateStmt.executeQuery();
+        try {
+            while (rs.next()) {
+                templates.put(rs.getString("provider_no"), rs.getString("name"), rs.getString("timecode"));
+                ++rows;
+            }
+        } finally {
+            rs.close();
+        }
+        record("template", start, rows);
+    }
+
+    /**
+     * Reads the active schedule days of a provider from dateFrom onwards, in
+     * date order.
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param schedDates receives the schedule dates
+     * @param templateKeys receives the provider number and name of the
+     * template of each date
+     * @throws SQLException
+     */
+    void loadSchedule(String provider, String dateFrom, List<String> schedDates, List<String[]> templateKeys) throws SQLException {
+        if (scheduleStmt == null) {
+            scheduleStmt = conn.prepareStatement(SCHEDULE_SQL);
+        }
+        scheduleStmt.setString(1, dateFrom);
+        scheduleStmt.setString(2, provider.trim());
+        long start = System.nanoTime();
+        int rows = 0;
+        ResultSet rs = scheduleStmt.executeQuery();
+        try {
+            while (rs.next()) {
+                schedDates.add(rs.getString("sdate"));
+                templateKeys.add(new String[] { rs.getString("provider_no"), rs.getString("name") });
+                ++rows;
+            }
+        } finally {
+            rs.close();
+        }
+        record("schedule", start, rows);
+    }
+
+    /**
+     * Reads the scheduledate rows of a provider from dateFrom onwards, with
+     * any status and without their templates.
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param rows receives the rows
+     * @throws SQLException
+     */
+    void loadScheduleRows(String provider, String dateFrom, List<Snapshot.ScheduleRow> rows) throws SQLException {
+        if (scheduleRowsStmt == null) {
+            scheduleRowsStmt = conn.prepareStatement(SCHEDULE_WATERMARK_SQL);
+        }
+        scheduleRowsStmt.setString(1, provider.trim());
+        scheduleRowsStmt.setString(2, dateFrom);
+        long start = System.nanoTime();
+        int count = 0;
+        ResultSet rs = scheduleRowsStmt.executeQuery();
+        try {
+            while (rs.next()) {
+                rows.add(new Snapshot.ScheduleRow(rs.getString("sdate"), rs.getString("hour"), rs.getString("status"), rs.getLong("id")));
+                ++count;
+            }
+        } finally {
+            rs.close();
+        }
+        record("schedule_rows", start, count);
+    }
+
+    /**
+     * Streams the uncancelled appointments of a provider between two dates,
+     * inclusive, to a handler one day at a time.  The result is read forward
+     * only and not buffered by the driver, so the handler must not run other
+     * queries on this DAO.
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param dateTo in format "yyyy-MM-dd"
+     * @param handler
+     * @throws SQLException
+     */
+    void streamAppointments(String provider, String dateFrom, String dateTo, AppointmentIndex.DayHandler handler) throws SQLException {
+        if (appointmentStmt == null) {
+            appointmentStmt = conn.prepareStatement(APPOINTMENT_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            setStreaming(appointmentStmt);
+        }
+        appointmentStmt.setString(1, provider.trim());
+        appointmentStmt.setString(2, dateFrom);
+        appointmentStmt.setString(3, dateTo);
+        long start = System.nanoTime();
+        int rows;
+        ResultSet rs = appointmentStmt.executeQuery();
+        try {
+            rows = AppointmentIndex.stream(rs, handler);
+        } finally {
+            rs.close();
+        }
+        record("appointment", start, rows);
+    }
+
+    /**
+     * Asks the driver to stream the rows of a statement instead of holding
+     * the whole result.  MySQL Connector/J streams a forward-only result only
+     * with a fetch size of Integer.MIN_VALUE, which other drivers reject;
+     * they are given a fetch size of STREAM_FETCH_ROWS instead.
+     * @param stmt
+     * @throws SQLException
+     */
+    static void setStreaming(Statement stmt) throws SQLException {
+        try {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+        } catch (SQLException se) {
+            stmt.setFetchSize(STREAM_FETCH_ROWS);
+        }
+    }
+
+    /**
+     * Reads a fingerprint of each day of a provider's schedule and
+     * appointments from dateFrom onwards, from the appointment counts and
+     * last update times and the schedule rows.  The fingerprint of a day
+     * changes whenever an appointment or schedule row of the day is added,
+     * edited, cancelled or removed.
+     * @param provider
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param fingerprints receives the fingerprint of each date that has any
+     * appointment or schedule row
+     * @throws SQLException
+     */
+    void loadFingerprints(String provider, String dateFrom, Map<String, Long> fingerprints) throws SQLException {
+        if (appointmentWatermarkStmt == null) {
+            appointmentWatermarkStmt = conn.prepareStatement(APPOINTMENT_WATERMARK_SQL);
+            scheduleWatermarkStmt = conn.prepareStatement(SCHEDULE_WATERMARK_SQL);
+        }
+        appointmentWatermarkStmt.setString(1, provider.trim());
+        appointmentWatermarkStmt.setString(2, dateFrom);
+        long start = System.nanoTime();
+        int rows = 0;
+        ResultSet rs = appointmentWatermarkStmt.executeQuery();
+        try {
+            while (rs.next()) {
+                ++rows;
+                addFingerprint(fingerprints, rs.getString("appointment_date"), getAppointmentFingerprint(rs.getLong("appts"), rs.getString("lastupdate")));
+            }
+        } finally {
+            rs.close();
+        }
+        record("appointment_watermark", start, rows);
+
+        scheduleWatermarkStmt.setString(1, provider.trim());
+        scheduleWatermarkStmt.setString(2, dateFrom);
+        start = System.nanoTime();
+        rows = 0;
+        rs = scheduleWatermarkStmt.executeQuery();
+        try {
+            while (rs.next()) {
+                ++rows;
+                addFingerprint(fingerprints, rs.getString("sdate"), getScheduleFingerprint(rs.getLong("id"), rs.getString("hour"), rs.getString("status")));
+            }
+        } finally {
+            rs.close();
+        }
+        record("schedule_watermark", start, rows);
+    }
+
+    /**
+     * @param count number of appointments of a day
+     * @param lastUpdate latest lastupdatedate of the day's appointments
+     * @return the appointments' part of the day's fingerprint
+     */
+    static long getAppointmentFingerprint(long count, String lastUpdate) {
+        return count * 1000003L + (lastUpdate != null ? lastUpdate.hashCode() : 0);
+    }
+
+    /**
+     * @param id
+     * @param hour
+     * @param status
+     * @return the part of one scheduledate row in the day's fingerprint
+     */
+    static long getScheduleFingerprint(long id, String hour, String status) {
+        long fingerprint = (id * 31L + (hour != null ? hour.hashCode() : 0)) * 31L + (status != null ? status.hashCode() : 0);
+        // Rows come in no particular order, so they are combined with a sum
+        // after spreading the bits
+        return fingerprint * 0x9E3779B97F4A7C15L;
+    }
+
+    static void addFingerprint(Map<String, Long> fingerprints, String date, long fingerprint) {
+        Long previous = fingerprints.get(date);
+        fingerprints.put(date, previous != null ? previous + fingerprint : fingerprint);
+    }
+
+    /**
+     * @param count number of providers
+     * @return query for the numbers of count providers
+     */
+    static String getProviderSQL(int count) {
+        StringBuilder sb = new StringBuilder("select provider_no, practitionerNo, ohip_no from provider where provider_no in (");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Reads the CPSID and MSP numbers of several providers with one query.
+     * @param providers provider numbers
+     * @param cache
+     * @throws SQLException
+     */
+    void loadProviders(List<String> providers, ProviderCache cache) throws SQLException {
+        PreparedStatement providerStmt = conn.prepareStatement(getProviderSQL(providers.size()));
+        try {
+            for (int i = 0; i < providers.size(); i++) {
+                providerStmt.setString(i + 1, providers.get(i));
+            }
+            long start = System.nanoTime();
+            int rows = 0;
+            ResultSet rs = providerStmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    cache.put(rs.getString("provider_no"), rs.getString("practitionerNo"), rs.getString("ohip_no"));
+                    ++rows;
+                }
+            } finally {
+                rs.close();
+            }
+            record("provider", start, rows);
+        } finally {
+            providerStmt.close();
+        }
+    }
+
+    /**
+     * Closes the prepared statements, leaving the connection open.
+     */
+    void close() {
+        PreparedStatement[] stmts = { templateStmt, scheduleStmt, appointmentStmt, appointmentWatermarkStmt, scheduleWatermarkStmt, scheduleRowsStmt };
+        for (PreparedStatement stmt : stmts) {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException se) {
+                    se.printStackTrace(System.out);
+                }
+            }
+        }
+        templateStmt = scheduleStmt = appointmentStmt = appointmentWatermarkStmt = scheduleWatermarkStmt = scheduleRowsStmt = null;
+    }
+}
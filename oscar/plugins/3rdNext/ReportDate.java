@@ -7,12 +7,7 @@
 
 import java.io.File;
 //import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,87 +23,79 @@ public class ReportDate {
         return loader;
     }
     
-    static private int setWeekDay(String weekDay) {
-        String matchDay = weekDay.toUpperCase();
-        int result;
-        if (matchDay.startsWith("MON")) {
-            result = Calendar.MONDAY;
-        } else if (matchDay.startsWith("TUE")) {
-            result = Calendar.TUESDAY;
-        } else if (matchDay.startsWith("WED")) {
-            result = Calendar.WEDNESDAY;
-        } else if (matchDay.startsWith("THU")) {
-            result = Calendar.THURSDAY;
-        } else if (matchDay.startsWith("FRI")) {
-            result = Calendar.FRIDAY;
-        } else if (matchDay.startsWith("SAT")) {
-            result = Calendar.SATURDAY;
-        } else { // must be Sunday
-            result = Calendar.SUNDAY;
-        }
-        return result;
-    }
-    
  /**
   * 
   * @param earliestDate in format "yyyy-MM-dd"
   * @param weekDay with String value, for example "TUESDAY".
-  * @return array of strings containing dates of specified weekday
+  * @return array of strings containing dates of specified weekday, from
+  * today back to earliestDate
   */
     static public ArrayList<String> getDates(String earliestDate, String weekDay) {
-        ArrayList<String> weekdayArrayList = new ArrayList<String>();
-        
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        Date earliestReportDate;
-        try {
-            earliestReportDate = dateFormat.parse(earliestDate);
-        } catch (ParseException ex) {
-            Logger.getLogger(ReportDate.class.getName()).log(Level.SEVERE, null, ex);
-            return weekdayArrayList;
+        if (!earliestDate.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            Logger.getLogger(ReportDate.class.getName()).log(Level.SEVERE, "Unparseable date: \"{0}\"", earliestDate);
+            return new ArrayList<String>();
         }
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(earliestReportDate);
-        
-        Calendar calendar = Calendar.getInstance();
-        int day = calendar.get(Calendar.DAY_OF_WEEK);
-        
-        Date reportDate = calendar.getTime();
-        
-        int cutoffYear = cal.get(Calendar.YEAR);
-        int cutoffMonth = cal.get(Calendar.MONTH);
-        int cutoffDayOfMonth = cal.get(Calendar.DAY_OF_MONTH);
-        GregorianCalendar gCal =
-                new GregorianCalendar(cutoffYear, cutoffMonth, cutoffDayOfMonth);
-        Date cutoffDate = gCal.getTime();
-        
-        int theWeekday = setWeekDay(weekDay);
-        
-        boolean includeToday = true;
-        while (day != theWeekday) {
-            includeToday = false;
-            calendar.add(Calendar.DATE, 1);
-            day = calendar.get(Calendar.DAY_OF_WEEK);
-        }
-        
-        if (includeToday) {
-            int year = calendar.get(Calendar.YEAR);
-            int month = calendar.get(Calendar.MONTH);
-            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
-            reportDate = new GregorianCalendar(year, month, dayOfMonth).getTime();
-            weekdayArrayList.add(dateFormat.format(reportDate));
+        return ReportCalendar.create(weekDay, earliestDate).toList();
+    }
+    
+    /**
+     * Converts a date to a day number, counting from 1970-01-01, without
+     * going through Calendar or a date formatter.
+     * @param date in format "yyyy-MM-dd"
+     * @return
+     */
+    static public int toEpochDay(String date) {
+        int year = Integer.parseInt(date.substring(0, 4));
+        int month = Integer.parseInt(date.substring(5, 7));
+        int dayOfMonth = Integer.parseInt(date.substring(8, 10));
+        // Count years from March so the leap day falls at the end of a year
+        if (month <= 2) {
+            --year;
         }
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
 
-        while (reportDate.after(cutoffDate)) {
-            calendar.add(Calendar.DATE, -7);
-            int year = calendar.get(Calendar.YEAR);
-            int month = calendar.get(Calendar.MONTH);
-            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
-            reportDate = new GregorianCalendar(year, month, dayOfMonth).getTime();
-            if (reportDate.after(cutoffDate)  || reportDate.equals(cutoffDate)) {
-                weekdayArrayList.add(dateFormat.format(reportDate));
-            }
-        };
-        return weekdayArrayList;
+    /**
+     * Converts a day number, counting from 1970-01-01, back to a date.
+     * @param epochDay
+     * @return date in format "yyyy-MM-dd"
+     */
+    static public String toDateString(int epochDay) {
+        int days = epochDay + 719468;
+        int era = (days >= 0 ? days : days - 146096) / 146097;
+        int dayOfEra = days - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        char[] date = new char[10];
+        date[0] = (char) ('0' + year / 1000 % 10);
+        date[1] = (char) ('0' + year / 100 % 10);
+        date[2] = (char) ('0' + year / 10 % 10);
+        date[3] = (char) ('0' + year % 10);
+        date[4] = '-';
+        date[5] = (char) ('0' + month / 10);
+        date[6] = (char) ('0' + month % 10);
+        date[7] = '-';
+        date[8] = (char) ('0' + dayOfMonth / 10);
+        date[9] = (char) ('0' + dayOfMonth % 10);
+        return new String(date);
+    }
+
+    /**
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @param dateTo in format "yyyy-MM-dd"
+     * @return number of days from dateFrom to dateTo, negative if dateTo is
+     * before dateFrom
+     */
+    static public int getDaysBetween(String dateFrom, String dateTo) {
+        return toEpochDay(dateTo) - toEpochDay(dateFrom);
     }
     
     public static void main(String[] args) {
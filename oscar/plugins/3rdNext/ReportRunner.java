@@ -0,0 +1,310 @@
+/*
+ * Generates the clinic report files of one configuration, using a pool of
+ * connections, a worker executor and the template and provider caches.
+ *
+ * A runner can be used once, by a batch run, or kept alive by the resident
+ * service so the connections, caches and JIT-compiled code stay warm between
+ * runs.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ReportRunner {
+
+    private final ReportSettings settings;
+    private final ConnectionPool pool;
+    private final ExecutorService executor;
+    private final TemplateCache templates;
+    private volatile RunMetrics lastMetrics;
+
+    ReportRunner(ReportSettings settings, ConnectionPool pool) {
+        this.settings = settings;
+        this.pool = pool;
+        this.executor = Executors.newFixedThreadPool(pool.size());
+        this.templates = new TemplateCache(settings.schedSymbols.split(","), settings.intervalModel);
+    }
+
+    ReportSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the metrics of the last run, or null if there has been none
+     */
+    RunMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    /**
+     * Generates the report files of every report date that has none yet,
+     * and, if a watermark store is configured, rewrites those whose results
+     * have changed since the last run.
+     * @return the report dates written
+     * @throws Exception
+     */
+    List<String> run() throws Exception {
+        RunMetrics metrics = new RunMetrics(settings.clinicName);
+        lastMetrics = metrics;
+        pool.setMetrics(metrics);
+        List<String> written = null;
+        try {
+            written = settings.watermarkFile != null ? runChanged() : runMissing();
+            return written;
+        } catch (Exception e) {
+            metrics.recordError();
+            throw e;
+        } finally {
+            pool.setMetrics(null);
+            metrics.finish(written != null ? written.size() : 0);
+            try {
+                metrics.write(settings.metricsDir);
+            } catch (IOException e) {
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * Generates the reports of the dates that have none yet.
+     */
+    private List<String> runMissing() throws Exception {
+        ArrayList<String> pendingDates = new ArrayList<String>();
+        for (String dateFrom : settings.getCalendar()) {
+            if (settings.findReport(dateFrom) == null) {
+                pendingDates.add(dateFrom);
+            }
+        }
+
+        if (!pendingDates.isEmpty()) {
+            ProviderCache providerCache = prepare();
+            writeReports(pendingDates, submit(pendingDates, providerCache, null));
+        }
+        return pendingDates;
+    }
+
+    /**
+     * Brings every report date up to date, recomputing only the provider
+     * results whose schedule days have changed.
+     */
+    private List<String> runChanged() throws Exception {
+        ArrayList<String> reportDates = settings.getCalendar().toList();
+        ArrayList<String> pendingDates = new ArrayList<String>();
+        if (reportDates.isEmpty()) {
+            return pendingDates;
+        }
+
+        ProviderCache providerCache = prepare();
+        WatermarkStore watermarks = WatermarkStore.load(settings.watermarkFile, getConfig());
+        ArrayList<Future<HashMap<String, String>>> futures = submit(reportDates, providerCache, watermarks);
+        boolean done = false;
+        try {
+            for (Future<HashMap<String, String>> future : futures) {
+                future.get();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (Future<HashMap<String, String>> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        for (String reportDate : reportDates) {
+            if (settings.findReport(reportDate) == null || watermarks.isChanged(reportDate)) {
+                pendingDates.add(reportDate);
+            }
+        }
+        writeReports(pendingDates, futures);
+        watermarks.save();
+        return pendingDates;
+    }
+
+    /**
+     * Generates the report of a single date without writing it.
+     * @param reportDate in format "yyyy-MM-dd"
+     * @return the clinic JSON
+     * @throws Exception
+     */
+    String generateClinicReport(String reportDate) throws Exception {
+        ArrayList<String> dates = new ArrayList<String>();
+        dates.add(reportDate);
+        StringWriter sw = new StringWriter();
+        HashMap<String, ReportWriter> writers = new HashMap<String, ReportWriter>();
+        writers.put(reportDate, new ReportWriter(sw, settings.clinicName, getTimestamp(reportDate)));
+        ProviderCache providerCache = prepare();
+        write(submit(dates, providerCache, null), dates, writers, null, null);
+        writers.get(reportDate).commit();
+        return sw.toString();
+    }
+
+    /**
+     * Reloads the templates and provider numbers for a run.
+     */
+    private ProviderCache prepare() throws InterruptedException, SQLException {
+        ReportDao dao = pool.acquire();
+        try {
+            // Pick up template edits; unchanged templates stay decoded
+            templates.load(dao);
+            return ProviderCache.load(dao, settings.providers, settings.providerCacheFile);
+        } finally {
+            pool.release(dao);
+        }
+    }
+
+    /**
+     * @return fingerprint of everything besides the schedule and
+     * appointments that the results depend on
+     */
+    private String getConfig() {
+        String config = settings.schedSymbols + " " + Arrays.toString(settings.nths) + " " + Arrays.toString(settings.apptLengths) + " " + templates.getFingerprint();
+        return settings.intervalModel ? config + " interval" : config;
+    }
+
+    /**
+     * Sweeps each provider's schedule across the report dates, one provider
+     * per worker and connection.
+     */
+    private ArrayList<Future<HashMap<String, String>>> submit(List<String> reportDates, ProviderCache providerCache, WatermarkStore watermarks) {
+        ArrayList<Future<HashMap<String, String>>> futures = new ArrayList<Future<HashMap<String, String>>>();
+        for (String provider : settings.providers) {
+            futures.add(executor.submit(new ThirdNextAppointment.ProviderReportTask(pool, reportDates, templates, providerCache, provider, settings.nths, settings.apptLengths, settings.indexDir, watermarks)));
+        }
+        return futures;
+    }
+
+    /**
+     * Writes report files, adds them to the archive and the clinic trends if
+     * configured, and commits the reports only if all are complete and both
+     * were saved, so a date whose history could not be saved has no report
+     * and is generated again by the next run.
+     */
+    private void writeReports(List<String> reportDates, ArrayList<Future<HashMap<String, String>>> futures) throws Exception {
+        if (!reportDates.isEmpty()) {
+            new File(settings.reportDir).mkdirs();
+        }
+        HashMap<String, ReportWriter> writers = new HashMap<String, ReportWriter>();
+        HashMap<String, List<String>> archived = settings.archiveFile != null ? new HashMap<String, List<String>>() : null;
+        HashMap<String, ClinicTrends.DateStats> stats = null;
+        if (settings.trendFile != null) {
+            stats = new HashMap<String, ClinicTrends.DateStats>();
+            for (String dateFrom : reportDates) {
+                stats.put(dateFrom, new ClinicTrends.DateStats());
+            }
+        }
+        boolean done = false;
+        try {
+            for (String dateFrom : reportDates) {
+                writers.put(dateFrom, ReportWriter.open(new File(settings.getReportPath(dateFrom)), settings.gzip, settings.clinicName, getTimestamp(dateFrom)));
+            }
+            write(futures, reportDates, writers, archived, stats);
+            if (!reportDates.isEmpty()) {
+                saveHistory(reportDates, archived, stats);
+            }
+            for (String dateFrom : reportDates) {
+                writers.get(dateFrom).commit();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                for (ReportWriter writer : writers.values()) {
+                    writer.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the records of the report dates to the archive and their
+     * histograms to the clinic trends, where configured.
+     */
+    private void saveHistory(List<String> reportDates, HashMap<String, List<String>> archived, HashMap<String, ClinicTrends.DateStats> stats) throws IOException, ParseException {
+        if (archived != null) {
+            File archiveFile = new File(settings.archiveFile);
+            ResultArchive archive = ResultArchive.load(archiveFile, settings.clinicName);
+            for (String dateFrom : reportDates) {
+                List<String> records = archived.get(dateFrom);
+                archive.put(dateFrom, getTimestamp(dateFrom), records != null ? records : new ArrayList<String>());
+            }
+            archive.save(archiveFile);
+        }
+        if (stats != null) {
+            ClinicTrends trends = ClinicTrends.load(settings.trendFile);
+            for (String dateFrom : reportDates) {
+                trends.put(dateFrom, stats.get(dateFrom));
+            }
+            trends.save();
+            File summary = settings.trendSummaryFile != null ? new File(settings.trendSummaryFile) : ClinicTrends.getSummaryFile(settings.metricsDir, settings.clinicName);
+            trends.writeSummary(summary, settings.clinicName, settings.trendWindows);
+        }
+    }
+
+    /**
+     * Writes each provider's records as soon as it and the providers before
+     * it are done, so output is deterministic and only a few providers'
+     * results are held at a time.  With archived set, the records of each
+     * date are also collected in it, and with stats set, added to the
+     * clinic's histograms of the date as they pass.
+     */
+    private void write(ArrayList<Future<HashMap<String, String>>> futures, List<String> reportDates, HashMap<String, ReportWriter> writers, HashMap<String, List<String>> archived, HashMap<String, ClinicTrends.DateStats> stats) throws InterruptedException, ExecutionException, IOException {
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                HashMap<String, String> reports = futures.get(i).get();
+                futures.set(i, null);
+                for (String reportDate : reportDates) {
+                    String report = reports.get(reportDate);
+                    if (report == null) {
+                        report = reports.get(null);
+                    }
+                    writers.get(reportDate).writeClinician(report);
+                    if (archived != null) {
+                        List<String> records = archived.get(reportDate);
+                        if (records == null) {
+                            records = new ArrayList<String>();
+                            archived.put(reportDate, records);
+                        }
+                        records.add(report);
+                    }
+                    if (stats != null) {
+                        stats.get(reportDate).add(report);
+                    }
+                }
+            }
+        } finally {
+            for (Future<HashMap<String, String>> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @return local midnight of the date in seconds since the epoch
+     */
+    static private long getTimestamp(String dateFrom) throws ParseException {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+        return df.parse(dateFrom).getTime() / 1000; // time in seconds rather than milliseconds
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+}
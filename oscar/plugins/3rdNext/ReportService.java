@@ -0,0 +1,175 @@
+/*
+ * Resident service mode.  Instead of a cold JVM, compile and database
+ * connection per cron run, one process keeps its connection pool and caches
+ * warm, regenerates the report files on the configured weekday and serves
+ * the clinic JSON over a small local HTTP endpoint:
+ *
+ * GET /thirdnext                  report of the most recent report date
+ * GET /thirdnext?date=yyyy-MM-dd  report of the given date
+ *
+ * A report that has already been written is served from its file; any
+ * other date is computed on demand.
+ */
+
+//package thirdnextappointment;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+public class ReportService {
+
+    private final ReportRunner runner;
+    private final ReportSettings settings;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private HttpServer server;
+
+    ReportService(ReportRunner runner) {
+        this.runner = runner;
+        this.settings = runner.getSettings();
+    }
+
+    /**
+     * Generates any missing reports, then schedules the next run and starts
+     * the HTTP endpoint.
+     * @throws IOException if the endpoint cannot be bound
+     */
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(settings.serviceHost, settings.servicePort), 0);
+        server.createContext("/thirdnext", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        System.out.println("Serving third next appointment reports on http://" + settings.serviceHost + ":" + settings.servicePort + "/thirdnext");
+
+        scheduler.execute(new Runnable() {
+            public void run() {
+                regenerate();
+            }
+        });
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private void regenerate() {
+        try {
+            List<String> written = runner.run();
+            if (!written.isEmpty()) {
+                System.out.println("Wrote " + written.size() + " report(s), latest " + written.get(0));
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+        } finally {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    regenerate();
+                }
+            }, getMillisToNextRun(Calendar.getInstance()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param now
+     * @return milliseconds from now to the next run, at servicehour on the
+     * next configured weekday
+     */
+    long getMillisToNextRun(Calendar now) {
+        Calendar next = (Calendar) now.clone();
+        next.set(Calendar.HOUR_OF_DAY, settings.serviceHour);
+        next.set(Calendar.MINUTE, 0);
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        ReportCalendar calendar = settings.getCalendar();
+        while (!next.after(now) || !calendar.isReportWeekDay(next.get(Calendar.DAY_OF_WEEK))) {
+            next.add(Calendar.DATE, 1);
+        }
+        return next.getTimeInMillis() - now.getTimeInMillis();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String body;
+        try {
+            String date = null;
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    if (param.startsWith("date=")) {
+                        date = param.substring("date=".length());
+                    }
+                }
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = "{\"error\":\"only GET is supported\"}";
+            } else if (date != null && !date.matches("\\d{4}-\\d{2}-\\d{2}")) {
+                status = 400;
+                body = "{\"error\":\"date must be in format yyyy-MM-dd\"}";
+            } else {
+                if (date == null) {
+                    date = settings.getCalendar().getLatest();
+                }
+                if (date == null) {
+                    status = 404;
+                    body = "{\"error\":\"no report dates are configured\"}";
+                } else {
+                    File f = settings.findReport(date);
+                    body = f != null ? readFile(f) : runner.generateClinicReport(date);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+            status = 500;
+            body = "{\"error\":\"report generation failed\"}";
+        }
+
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    static private String readFile(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            if (f.getName().endsWith(ReportWriter.GZIP_SUFFIX)) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Validated configuration of a report run, read from
+ * ThirdNextAppointment.properties and any command-line overrides.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Properties;
+
+public class ReportSettings {
+
+    String dbUrl;
+    String dbUser;
+    String dbPassword;
+    String snapshotDir;
+    String schedSymbols;
+    String[] providers;
+    int apptLength;
+    int[] nths = { 3 };
+    int[] apptLengths;
+    boolean intervalModel = false;
+    String clinicName;
+    String earliestDate;
+    String weekDay;
+    int[] reportRanges;
+    int parallelism = 1;
+    String providerCacheFile;
+    String reportDir = "./reports/";
+    boolean gzip = false;
+    String watermarkFile;
+    String indexDir;
+    String archiveFile;
+    String trendFile;
+    int[] trendWindows = ClinicTrends.DEFAULT_WINDOWS;
+    String trendSummaryFile;
+    String metricsDir = "./metrics/";
+    String mode = "batch";
+    String[] sweepSymbols;
+    int[] sweepLengths;
+    String serviceHost = "127.0.0.1";
+    int servicePort = 8380;
+    int serviceHour = 2;
+
+    /**
+     * Reads and checks the configuration, printing a message for every
+     * missing or invalid parameter.
+     * @param prop
+     * @return the settings, or null if any parameter is missing or invalid
+     */
+    static ReportSettings parse(Properties prop) {
+        ReportSettings settings = new ReportSettings();
+        boolean errorOccurred = false;
+
+        settings.snapshotDir = prop.getProperty("snapshotdir");
+        if (settings.snapshotDir != null && settings.snapshotDir.isEmpty()) {
+            settings.snapshotDir = null;
+        }
+        if (settings.snapshotDir != null && !new File(settings.snapshotDir).isDirectory()) {
+            System.err.println("The snapshot directory '" + settings.snapshotDir + "' does not exist.");
+            errorOccurred = true;
+        }
+        // The database is not used when reading a snapshot
+        if (settings.snapshotDir == null) {
+            settings.dbUrl = prop.getProperty("dburl");
+            if (settings.dbUrl == null || settings.dbUrl.isEmpty()) {
+                System.err.println("The database url parameter 'dburl' must be set.");
+                errorOccurred = true;
+            }
+            settings.dbUser = prop.getProperty("dbuser");
+            if (settings.dbUser == null || settings.dbUser.isEmpty()) {
+                System.err.println("The database user parameter 'dbuser' must be set.");
+                errorOccurred = true;
+            }
+            settings.dbPassword = prop.getProperty("dbpassword");
+            if (settings.dbPassword == null || settings.dbPassword.isEmpty()) {
+                System.err.println("The database user password parameter 'dbpassword' must be set.");
+                errorOccurred = true;
+            }
+        }
+        settings.schedSymbols = prop.getProperty("schedsymbols");
+        if (settings.schedSymbols == null || settings.schedSymbols.isEmpty()) {
+            System.err.println("The schedule symbols parameter 'schedsymbols' must be set.");
+            System.err.println("  It should look something like 'schedsymbols=1,2,3'");
+            errorOccurred = true;
+        }
+        String providerNums = prop.getProperty("providernums");
+        if (providerNums == null || providerNums.isEmpty()) {
+            System.err.println("The provider number parameter of the service providers must be set.");
+            System.err.println("  It should look something like 'providernums=101,110'");
+            errorOccurred = true;
+        } else {
+            settings.providers = providerNums.split(",");
+        }
+        String apptLengthStr = prop.getProperty("apptlength");
+        if (apptLengthStr == null || apptLengthStr.isEmpty()) {
+            System.err.println("The appointment length parameter apptlength must be set.");
+            System.err.println("  It should look something like 'apptlength=15'");
+            errorOccurred = true;
+        } else {
+            try {
+                settings.apptLength = Integer.parseInt(apptLengthStr);
+            } catch (NumberFormatException nf) {
+                System.err.println("The apptlength parameter is invalid.");
+                errorOccurred = true;
+            }
+        }
+        String nthNext = prop.getProperty("nthnext");
+        if (nthNext != null && !nthNext.isEmpty()) {
+            settings.nths = parsePositiveList(nthNext);
+            if (settings.nths == null) {
+                System.err.println("The nthnext parameter is invalid.");
+                System.err.println("  It should look something like 'nthnext=1,2,3,5'");
+                errorOccurred = true;
+            }
+        }
+        // The configured apptlength always comes first; it is the length
+        // of the "3rdnext" result
+        settings.apptLengths = new int[] { settings.apptLength };
+        String apptLengths = prop.getProperty("apptlengths");
+        if (apptLengths != null && !apptLengths.isEmpty()) {
+            int[] lengths = parsePositiveList(apptLengths);
+            if (lengths == null) {
+                System.err.println("The apptlengths parameter is invalid.");
+                System.err.println("  It should look something like 'apptlengths=15,30'");
+                errorOccurred = true;
+            } else {
+                ArrayList<Integer> merged = new ArrayList<Integer>();
+                merged.add(settings.apptLength);
+                for (int length : lengths) {
+                    if (!merged.contains(length)) {
+                        merged.add(length);
+                    }
+                }
+                settings.apptLengths = new int[merged.size()];
+                for (int i = 0; i < merged.size(); i++) {
+                    settings.apptLengths[i] = merged.get(i);
+                }
+            }
+        }
+        String bookingModel = prop.getProperty("bookingmodel");
+        if (bookingModel != null && !bookingModel.isEmpty()) {
+            if (bookingModel.equalsIgnoreCase("interval")) {
+                settings.intervalModel = true;
+            } else if (!bookingModel.equalsIgnoreCase("slot")) {
+                System.err.println("The bookingmodel parameter must be 'slot' or 'interval'.");
+                errorOccurred = true;
+            }
+        }
+        settings.clinicName = prop.getProperty("clinic");
+        if (settings.clinicName == null || settings.clinicName.isEmpty()) {
+            System.err.println("The clinic name parameter must be set.");
+            errorOccurred = true;
+        }
+
+        String reportDates = prop.getProperty("reportdates");
+        if (reportDates != null && !reportDates.isEmpty()) {
+            settings.reportRanges = ReportCalendar.parseRanges(reportDates);
+            if (settings.reportRanges == null) {
+                System.err.println("The reportdates parameter is invalid.");
+                System.err.println("  It should look something like 'reportdates=2024-01-02,2024-03-01..2024-03-31'");
+                errorOccurred = true;
+            }
+        }
+
+        settings.earliestDate = prop.getProperty("earliest");
+        if (settings.earliestDate == null || settings.earliestDate.isEmpty()) {
+            if (reportDates == null || reportDates.isEmpty()) {
+                System.err.println("The earliestDate parameter must be set.");
+                errorOccurred = true;
+            }
+        } else if (!settings.earliestDate.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            System.err.println("The earliest parameter is invalid.");
+            System.err.println("  It should look something like 'earliest=2014-04-01'");
+            errorOccurred = true;
+        }
+
+        settings.weekDay = prop.getProperty("weekday");
+        if (settings.weekDay == null || settings.weekDay.isEmpty()) {
+            System.err.println("The weekday paramater must be set.");
+            errorOccurred = true;
+        } else if (!ReportCalendar.isValidCadence(settings.weekDay)) {
+            System.err.println("The weekday parameter is invalid.");
+            System.err.println("  It should be 'daily' or weekdays like 'weekday=tuesday' or 'weekday=mon,thu'");
+            errorOccurred = true;
+        }
+
+        String parallelismStr = prop.getProperty("parallelism");
+        if (parallelismStr != null && !parallelismStr.isEmpty()) {
+            settings.parallelism = parsePositive(parallelismStr);
+            if (settings.parallelism < 1) {
+                System.err.println("The parallelism parameter is invalid.");
+                System.err.println("  It should be a positive number like 'parallelism=4'");
+                errorOccurred = true;
+            }
+        }
+
+        settings.providerCacheFile = prop.getProperty("providercache");
+        if (settings.providerCacheFile != null && settings.providerCacheFile.isEmpty()) {
+            settings.providerCacheFile = null;
+        }
+
+        String reportDir = prop.getProperty("reportdir");
+        if (reportDir != null && !reportDir.isEmpty()) {
+            settings.reportDir = reportDir.endsWith("/") ? reportDir : reportDir + "/";
+        }
+
+        String metricsDir = prop.getProperty("metricsdir");
+        if (metricsDir != null && !metricsDir.isEmpty()) {
+            settings.metricsDir = metricsDir;
+        }
+
+        settings.watermarkFile = prop.getProperty("watermarks");
+        if (settings.watermarkFile != null && settings.watermarkFile.isEmpty()) {
+            settings.watermarkFile = null;
+        }
+
+        settings.indexDir = prop.getProperty("indexdir");
+        if (settings.indexDir != null && settings.indexDir.isEmpty()) {
+            settings.indexDir = null;
+        }
+
+        settings.archiveFile = prop.getProperty("archive");
+        if (settings.archiveFile != null && settings.archiveFile.isEmpty()) {
+            settings.archiveFile = null;
+        }
+
+        settings.trendFile = prop.getProperty("trends");
+        if (settings.trendFile != null && settings.trendFile.isEmpty()) {
+            settings.trendFile = null;
+        }
+        settings.trendSummaryFile = prop.getProperty("trendsummary");
+        if (settings.trendSummaryFile != null && settings.trendSummaryFile.isEmpty()) {
+            settings.trendSummaryFile = null;
+        }
+        String trendWindows = prop.getProperty("trendwindows");
+        if (trendWindows != null && !trendWindows.isEmpty()) {
+            settings.trendWindows = parsePositiveList(trendWindows);
+            if (settings.trendWindows == null) {
+                System.err.println("The trendwindows parameter is invalid.");
+                System.err.println("  It should look something like 'trendwindows=1,4,13'");
+                errorOccurred = true;
+            }
+        }
+
+        String gzip = prop.getProperty("gzip");
+        if (gzip != null && !gzip.isEmpty()) {
+            settings.gzip = Boolean.parseBoolean(gzip.trim());
+        }
+
+        String mode = prop.getProperty("mode");
+        if (mode != null && !mode.isEmpty()) {
+            settings.mode = mode.toLowerCase();
+            if (!settings.mode.equals("batch") && !settings.mode.equals("service") && !settings.mode.equals("sweep")) {
+                System.err.println("The mode parameter must be 'batch', 'service', 'fleet' or 'sweep'.");
+                errorOccurred = true;
+            }
+        }
+
+        settings.sweepSymbols = new String[] { settings.schedSymbols };
+        String sweepSymbols = prop.getProperty("sweepsymbols");
+        if (sweepSymbols != null && !sweepSymbols.isEmpty()) {
+            ArrayList<String> symbolSets = new ArrayList<String>();
+            for (String symbols : sweepSymbols.split(";")) {
+                if (!symbols.trim().isEmpty()) {
+                    symbolSets.add(symbols.trim());
+                }
+            }
+            if (symbolSets.isEmpty()) {
+                System.err.println("The sweepsymbols parameter is invalid.");
+                System.err.println("  It should look something like 'sweepsymbols=1,2,3;1,2,3,6'");
+                errorOccurred = true;
+            } else {
+                settings.sweepSymbols = symbolSets.toArray(new String[symbolSets.size()]);
+            }
+        }
+        settings.sweepLengths = new int[] { settings.apptLength };
+        String sweepLengths = prop.getProperty("sweeplengths");
+        if (sweepLengths != null && !sweepLengths.isEmpty()) {
+            settings.sweepLengths = parsePositiveList(sweepLengths);
+            if (settings.sweepLengths == null) {
+                System.err.println("The sweeplengths parameter is invalid.");
+                System.err.println("  It should look something like 'sweeplengths=10,15,20'");
+                errorOccurred = true;
+            }
+        }
+
+        String serviceHost = prop.getProperty("servicehost");
+        if (serviceHost != null && !serviceHost.isEmpty()) {
+            settings.serviceHost = serviceHost;
+        }
+        String servicePort = prop.getProperty("serviceport");
+        if (servicePort != null && !servicePort.isEmpty()) {
+            settings.servicePort = parsePositive(servicePort);
+            if (settings.servicePort < 1 || settings.servicePort > 65535) {
+                System.err.println("The serviceport parameter is invalid.");
+                System.err.println("  It should look something like 'serviceport=8380'");
+                errorOccurred = true;
+            }
+        }
+        String serviceHour = prop.getProperty("servicehour");
+        if (serviceHour != null && !serviceHour.isEmpty()) {
+            settings.serviceHour = serviceHour.equals("0") ? 0 : parsePositive(serviceHour);
+            if (settings.serviceHour < 0 || settings.serviceHour > 23) {
+                System.err.println("The servicehour parameter is invalid.");
+                System.err.println("  It should be an hour of the day like 'servicehour=2'");
+                errorOccurred = true;
+            }
+        }
+
+        if (errorOccurred) {
+            System.err.println("Set unconfigured parameters in '" + ThirdNextAppointment.CONFIG_FILE + "'");
+            System.err.println("  or pass them in on the command-line in the format 'parm=value'");
+            return null;
+        }
+        return settings;
+    }
+
+    /**
+     * @param s
+     * @return the positive number in s, or -1 if it is not one
+     */
+    static int parsePositive(String s) {
+        try {
+            int value = Integer.parseInt(s.trim());
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException nf) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param s comma separated numbers
+     * @return the numbers, or null if any of them is not a positive number
+     */
+    static int[] parsePositiveList(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = parsePositive(parts[i]);
+            if (values[i] < 1) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the report dates: those of reportdates if set, otherwise those
+     * from earliest through today
+     */
+    ReportCalendar getCalendar() {
+        if (reportRanges != null) {
+            return ReportCalendar.create(weekDay, reportRanges);
+        }
+        return ReportCalendar.create(weekDay, earliestDate);
+    }
+
+    /**
+     * @param reportDate in format "yyyy-MM-dd"
+     * @return path of the report file of the date, compressed if gzip is set
+     */
+    String getReportPath(String reportDate) {
+        String path = reportDir + "thirdnextappt_" + clinicName + "_" + reportDate + ".txt";
+        return gzip ? path + ReportWriter.GZIP_SUFFIX : path;
+    }
+
+    /**
+     * @param reportDate in format "yyyy-MM-dd"
+     * @return the report file of the date, plain or compressed, or null if
+     * it has not been written
+     */
+    File findReport(String reportDate) {
+        File f = new File(reportDir + "thirdnextappt_" + clinicName + "_" + reportDate + ".txt");
+        if (f.exists()) {
+            return f;
+        }
+        f = new File(f.getPath() + ReportWriter.GZIP_SUFFIX);
+        return f.exists() ? f : null;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Writes one clinic report file, streaming each clinician record out as soon
+ * as it is available.
+ *
+ * The report replaces its file only once complete (see AtomicFile), so a
+ * crashed run never leaves a truncated report behind that later runs would
+ * take as done.
+ */
+
+//package thirdnextappointment;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+public class ReportWriter {
+
+    static final String GZIP_SUFFIX = ".gz";
+
+    private final AtomicFile file;
+    private final Writer out;
+    private int clinicians = 0;
+
+    /**
+     * Opens the temp file of a report and writes the clinic header.
+     * @param target report file
+     * @param gzip whether to compress the report
+     * @param clinicName
+     * @param timestamp report date in seconds since the epoch
+     * @return
+     * @throws IOException
+     */
+    static ReportWriter open(File target, boolean gzip, String clinicName, long timestamp) throws IOException {
+        AtomicFile file = AtomicFile.create(target);
+        try {
+            OutputStream stream = gzip ? new GZIPOutputStream(file.getStream(), 8192) : file.getStream();
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 8192);
+            return new ReportWriter(out, file, clinicName, timestamp);
+        } catch (IOException e) {
+            file.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a report to a writer rather than a file, for example to serve
+     * it directly.
+     * @param out
+     * @param clinicName
+     * @param timestamp report date in seconds since the epoch
+     * @throws IOException
+     */
+    ReportWriter(Writer out, String clinicName, long timestamp) throws IOException {
+        this(out, null, clinicName, timestamp);
+    }
+
+    private ReportWriter(Writer out, AtomicFile file, String clinicName, long timestamp) throws IOException {
+        this.out = out;
+        this.file = file;
+        writeLine("{\"clinic\":\"" + clinicName + "\", \"date\":" + timestamp + ", \"clinicians\":[");
+    }
+
+    /**
+     * @param clinician JSON record of one clinician
+     * @throws IOException
+     */
+    void writeClinician(String clinician) throws IOException {
+        if (clinicians > 0) {
+            writeLine(", ");
+        }
+        out.write(clinician);
+        ++clinicians;
+    }
+
+    /**
+     * Finishes the report, syncs it to disk and renames it into place.  A
+     * report written to a writer is only flushed.
+     * @throws IOException if the report could not be written; the temp file
+     * is then removed
+     */
+    void commit() throws IOException {
+        try {
+            if (clinicians > 0) {
+                writeLine("");
+            }
+            writeLine("]}");
+            if (file == null) {
+                out.flush();
+                return;
+            }
+            out.close();
+            file.commit();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards the report.
+     */
+    void abort() {
+        if (file == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The temp file is removed regardless
+        }
+        file.abort();
+    }
+
+    private void writeLine(String s) throws IOException {
+        out.write(s);
+        out.write(System.getProperty("line.separator"));
+    }
+}
@@ -0,0 +1,620 @@
+/*
+ * Compact archive of a clinic's report results, one file for all report
+ * dates, to ship and read instead of thousands of small report files.
+ *
+ * Each clinician record is split into columns, each stored for all records
+ * together so that like values sit next to each other:
+ *
+ *   header    int magic, int version, then deflate compressed:
+ *   clinic    string
+ *   strings   varint count, strings: clinician ids, cpsid and msp numbers,
+ *             metric names and any records kept verbatim
+ *   schemas   varint count, per schema: varint metrics, metric name indexes
+ *   dates     varint count; epoch day deltas; timestamp offsets from UTC
+ *             midnight; records per date
+ *   records   clinician indexes; schema (0 = verbatim); cpsid and msp
+ *             indexes (0 = null provider info, else index + 1); then the
+ *             days of every metric of every record, as the change from the
+ *             same clinician and metric on the previous date
+ *
+ * Numbers are zigzag varints, so the mostly small or unchanged values take
+ * a byte each before compression.  A record that does not have the shape
+ * ThirdNextAppointment writes is kept verbatim, so every report exports back
+ * to exactly the file it was archived from.
+ *
+ * Adding report dates rewrites the archive, which replaces its file like the
+ * reports (see AtomicFile); results of a date already archived are replaced.
+ *
+ * java ResultArchive archive=<file> import=<reportdir>
+ * java ResultArchive archive=<file> export=<dir> [date=yyyy-MM-dd] [gzip=false]
+ */
+
+//package thirdnextappointment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ResultArchive {
+
+    static final int MAGIC = 0x544E5841; // "TNXA"
+    static final int VERSION = 1;
+    static final String SUFFIX = ".tna";
+
+    /**
+     * One clinician record of a report.
+     */
+    static class Record {
+
+        final String clinician;
+        // Null if the provider's numbers were not known
+        final String cpsId;
+        final String mspNo;
+        // Metric names, starting with "3rdnext", and their days
+        final String[] metrics;
+        final int[] days;
+        // The record as written, if it does not have the usual shape
+        final String verbatim;
+
+        Record(String clinician, String cpsId, String mspNo, String[] metrics, int[] days) {
+            this.clinician = clinician;
+            this.cpsId = cpsId;
+            this.mspNo = mspNo;
+            this.metrics = metrics;
+            this.days = days;
+            this.verbatim = null;
+        }
+
+        Record(String verbatim) {
+            this.clinician = null;
+            this.cpsId = null;
+            this.mspNo = null;
+            this.metrics = null;
+            this.days = null;
+            this.verbatim = verbatim;
+        }
+
+        /**
+         * @param metric
+         * @return the days of the metric, or null if the record has none
+         */
+        Integer getDays(String metric) {
+            for (int m = 0; metrics != null && m < metrics.length; m++) {
+                if (metrics[m].equals(metric)) {
+                    return days[m];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the record as ThirdNextAppointment writes it
+         */
+        String toJson() {
+            if (verbatim != null) {
+                return verbatim;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"clinician\":\"").append(clinician).append("\", ");
+            if (cpsId != null) {
+                sb.append("\"cpsid\":\"").append(cpsId).append("\", \"msp\":\"").append(mspNo).append("\"");
+            } else {
+                sb.append("null");
+            }
+            for (int m = 0; m < metrics.length; m++) {
+                sb.append(", \"").append(metrics[m]).append("\":").append(days[m]);
+            }
+            return sb.append("}").toString();
+        }
+    }
+
+    private final String clinic;
+    private final TreeMap<String, Long> timestamps = new TreeMap<String, Long>();
+    private final HashMap<String, List<Record>> records = new HashMap<String, List<Record>>();
+
+    ResultArchive(String clinic) {
+        this.clinic = clinic;
+    }
+
+    String getClinic() {
+        return clinic;
+    }
+
+    /**
+     * @return the archived report dates, oldest first
+     */
+    List<String> getDates() {
+        return new ArrayList<String>(timestamps.keySet());
+    }
+
+    /**
+     * @param date in format "yyyy-MM-dd"
+     * @return the report timestamp of the date in seconds since the epoch,
+     * or null if the date is not archived
+     */
+    Long getTimestamp(String date) {
+        return timestamps.get(date);
+    }
+
+    /**
+     * @param date in format "yyyy-MM-dd"
+     * @return the clinician records of the date in report order, or null if
+     * the date is not archived
+     */
+    List<Record> getRecords(String date) {
+        List<Record> dateRecords = records.get(date);
+        return dateRecords != null ? Collections.unmodifiableList(dateRecords) : null;
+    }
+
+    /**
+     * Adds or replaces the report of a date.
+     * @param date in format "yyyy-MM-dd"
+     * @param timestamp report date in seconds since the epoch
+     * @param clinicianJson the clinician records of the report
+     */
+    void put(String date, long timestamp, List<String> clinicianJson) {
+        ArrayList<Record> dateRecords = new ArrayList<Record>(clinicianJson.size());
+        for (String json : clinicianJson) {
+            dateRecords.add(parse(json));
+        }
+        timestamps.put(date, timestamp);
+        records.put(date, dateRecords);
+    }
+
+    /**
+     * Writes the report of a date in the format of ReportWriter.
+     * @param date in format "yyyy-MM-dd"
+     * @param target report file
+     * @param gzip whether to compress the report
+     * @throws IOException
+     */
+    void export(String date, File target, boolean gzip) throws IOException {
+        ReportWriter writer = ReportWriter.open(target, gzip, clinic, timestamps.get(date));
+        try {
+            for (Record record : records.get(date)) {
+                writer.writeClinician(record.toJson());
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.commit();
+    }
+
+    /**
+     * Parses a clinician record written by ThirdNextAppointment.
+     * @param json
+     * @return the record, kept verbatim if it does not have the usual shape
+     */
+    static Record parse(String json) {
+        Record record = null;
+        try {
+            record = parseFields(json);
+        } catch (RuntimeException e) {
+            record = null;
+        }
+        // Only a record that is written back exactly is split into columns
+        return record != null && record.toJson().equals(json) ? record : new Record(json);
+    }
+
+    static private Record parseFields(String json) {
+        String prefix = "{\"clinician\":\"";
+        if (!json.startsWith(prefix) || !json.endsWith("}")) {
+            return null;
+        }
+        int pos = json.indexOf("\", ", prefix.length());
+        String clinician = json.substring(prefix.length(), pos);
+        pos += 3;
+        String cpsId = null;
+        String mspNo = null;
+        if (json.startsWith("null", pos)) {
+            pos += 4;
+        } else if (json.startsWith("\"cpsid\":\"", pos)) {
+            int end = json.indexOf("\", \"msp\":\"", pos);
+            cpsId = json.substring(pos + 9, end);
+            pos = end + 10;
+            end = json.indexOf('"', pos);
+            mspNo = json.substring(pos, end);
+            pos = end + 1;
+        } else {
+            return null;
+        }
+        ArrayList<String> metrics = new ArrayList<String>();
+        ArrayList<Integer> days = new ArrayList<Integer>();
+        while (json.startsWith(", \"", pos)) {
+            int end = json.indexOf("\":", pos + 3);
+            metrics.add(json.substring(pos + 3, end));
+            pos = end + 2;
+            end = pos;
+            while (end < json.length() && (json.charAt(end) == '-' || Character.isDigit(json.charAt(end)))) {
+                ++end;
+            }
+            days.add(Integer.parseInt(json.substring(pos, end)));
+            pos = end;
+        }
+        if (pos != json.length() - 1 || metrics.isEmpty()) {
+            return null;
+        }
+        int[] values = new int[days.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = days.get(i);
+        }
+        return new Record(clinician, cpsId, mspNo, metrics.toArray(new String[metrics.size()]), values);
+    }
+
+    /**
+     * Reads an archive.
+     * @param file
+     * @return
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    static ResultArchive read(File file) throws IOException {
+        DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException(file + " is not a result archive of version " + VERSION);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(header), 1 << 16));
+            ResultArchive archive = new ResultArchive(in.readUTF());
+            String[] strings = new String[readVarint(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            String[][] schemas = new String[readVarint(in)][];
+            for (int s = 0; s < schemas.length; s++) {
+                schemas[s] = new String[readVarint(in)];
+                for (int m = 0; m < schemas[s].length; m++) {
+                    schemas[s][m] = strings[readVarint(in)];
+                }
+            }
+
+            String[] dates = new String[readVarint(in)];
+            int[] epochDays = new int[dates.length];
+            int epochDay = 0;
+            for (int d = 0; d < dates.length; d++) {
+                epochDay += readSigned(in);
+                epochDays[d] = epochDay;
+                dates[d] = ReportDate.toDateString(epochDay);
+            }
+            for (int d = 0; d < dates.length; d++) {
+                archive.timestamps.put(dates[d], epochDays[d] * 86400L + readSigned(in));
+            }
+            int[] counts = new int[dates.length];
+            int numRecords = 0;
+            for (int d = 0; d < dates.length; d++) {
+                counts[d] = readVarint(in);
+                numRecords += counts[d];
+            }
+
+            int[] clinicians = readColumn(in, numRecords);
+            int[] recordSchemas = readColumn(in, numRecords);
+            int[] cpsIds = readColumn(in, numRecords);
+            int[] mspNos = readColumn(in, numRecords);
+            HashMap<String, Integer> previous = new HashMap<String, Integer>();
+            int r = 0;
+            for (int d = 0; d < dates.length; d++) {
+                ArrayList<Record> dateRecords = new ArrayList<Record>(counts[d]);
+                for (int i = 0; i < counts[d]; i++, r++) {
+                    if (recordSchemas[r] == 0) {
+                        dateRecords.add(new Record(strings[clinicians[r]]));
+                        continue;
+                    }
+                    String clinician = strings[clinicians[r]];
+                    String[] metrics = schemas[recordSchemas[r] - 1];
+                    int[] days = new int[metrics.length];
+                    for (int m = 0; m < metrics.length; m++) {
+                        String key = clinician + '\u0000' + metrics[m];
+                        Integer last = previous.get(key);
+                        days[m] = (last != null ? last : 0) + readSigned(in);
+                        previous.put(key, days[m]);
+                    }
+                    dateRecords.add(new Record(clinician, cpsIds[r] > 0 ? strings[cpsIds[r] - 1] : null, mspNos[r] > 0 ? strings[mspNos[r] - 1] : null, metrics, days));
+                }
+                archive.records.put(dates[d], dateRecords);
+            }
+            return archive;
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            header.close();
+        }
+    }
+
+    /**
+     * Reads an archive, or starts an empty one if the file does not exist.
+     * @param file
+     * @param clinic
+     * @return
+     * @throws IOException
+     */
+    static ResultArchive load(File file, String clinic) throws IOException {
+        return file.exists() ? read(file) : new ResultArchive(clinic);
+    }
+
+    /**
+     * Writes the archive.
+     * @param target
+     * @throws IOException
+     */
+    void save(File target) throws IOException {
+        AtomicFile file = AtomicFile.create(target);
+        try {
+            DataOutputStream header = new DataOutputStream(file.getStream());
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.flush();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(file.getStream()), 1 << 16));
+            write(out);
+            out.close();
+            file.commit();
+        } finally {
+            file.abort();
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        // Dictionary of every string, in order of first use
+        HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> schemaIds = new HashMap<String, Integer>();
+        ArrayList<String[]> schemas = new ArrayList<String[]>();
+        int numRecords = 0;
+        for (List<Record> dateRecords : records.values()) {
+            numRecords += dateRecords.size();
+        }
+        int[] clinicians = new int[numRecords];
+        int[] recordSchemas = new int[numRecords];
+        int[] cpsIds = new int[numRecords];
+        int[] mspNos = new int[numRecords];
+        int r = 0;
+        for (String date : timestamps.keySet()) {
+            for (Record record : records.get(date)) {
+                if (record.verbatim != null) {
+                    clinicians[r++] = getId(record.verbatim, stringIds, strings);
+                    continue;
+                }
+                clinicians[r] = getId(record.clinician, stringIds, strings);
+                StringBuilder key = new StringBuilder();
+                for (String metric : record.metrics) {
+                    key.append(metric).append('\u0000');
+                }
+                Integer schema = schemaIds.get(key.toString());
+                if (schema == null) {
+                    schema = schemas.size() + 1;
+                    schemaIds.put(key.toString(), schema);
+                    schemas.add(record.metrics);
+                }
+                recordSchemas[r] = schema;
+                cpsIds[r] = record.cpsId != null ? getId(record.cpsId, stringIds, strings) + 1 : 0;
+                mspNos[r] = record.mspNo != null ? getId(record.mspNo, stringIds, strings) + 1 : 0;
+                ++r;
+            }
+        }
+        ArrayList<int[]> schemaNames = new ArrayList<int[]>();
+        for (String[] metrics : schemas) {
+            int[] names = new int[metrics.length];
+            for (int m = 0; m < metrics.length; m++) {
+                names[m] = getId(metrics[m], stringIds, strings);
+            }
+            schemaNames.add(names);
+        }
+
+        out.writeUTF(clinic);
+        writeVarint(out, strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+        writeVarint(out, schemaNames.size());
+        for (int[] names : schemaNames) {
+            writeVarint(out, names.length);
+            for (int name : names) {
+                writeVarint(out, name);
+            }
+        }
+
+        writeVarint(out, timestamps.size());
+        int epochDay = 0;
+        for (String date : timestamps.keySet()) {
+            int day = ReportDate.toEpochDay(date);
+            writeSigned(out, day - epochDay);
+            epochDay = day;
+        }
+        for (Map.Entry<String, Long> entry : timestamps.entrySet()) {
+            writeSigned(out, (int) (entry.getValue() - ReportDate.toEpochDay(entry.getKey()) * 86400L));
+        }
+        for (String date : timestamps.keySet()) {
+            writeVarint(out, records.get(date).size());
+        }
+
+        for (int[] column : new int[][] { clinicians, recordSchemas, cpsIds, mspNos }) {
+            for (int value : column) {
+                writeVarint(out, value);
+            }
+        }
+        HashMap<String, Integer> previous = new HashMap<String, Integer>();
+        for (String date : timestamps.keySet()) {
+            for (Record record : records.get(date)) {
+                for (int m = 0; record.verbatim == null && m < record.metrics.length; m++) {
+                    String key = record.clinician + '\u0000' + record.metrics[m];
+                    Integer last = previous.get(key);
+                    writeSigned(out, record.days[m] - (last != null ? last : 0));
+                    previous.put(key, record.days[m]);
+                }
+            }
+        }
+    }
+
+    static private int getId(String s, HashMap<String, Integer> ids, ArrayList<String> strings) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    static private int[] readColumn(DataInputStream in, int length) throws IOException {
+        int[] column = new int[length];
+        for (int i = 0; i < length; i++) {
+            column[i] = readVarint(in);
+        }
+        return column;
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeSigned(DataOutputStream out, int value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int readSigned(DataInputStream in) throws IOException {
+        int value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Adds a report file written by ReportWriter.
+     * @param file plain or gzip compressed report
+     * @param date in format "yyyy-MM-dd"
+     * @throws IOException if the file is not a report
+     */
+    void importReport(File file, String date) throws IOException {
+        InputStream input = new FileInputStream(file);
+        if (file.getName().endsWith(ReportWriter.GZIP_SUFFIX)) {
+            input = new GZIPInputStream(input);
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        Reader reader = new InputStreamReader(input, "UTF-8");
+        try {
+            BufferedReader lineReader = new BufferedReader(reader);
+            String line;
+            while ((line = lineReader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        String prefix = "{\"clinic\":\"" + clinic + "\", \"date\":";
+        if (lines.size() < 2 || !lines.get(0).startsWith(prefix) || !lines.get(0).endsWith(", \"clinicians\":[") || !lines.get(lines.size() - 1).equals("]}")) {
+            throw new IOException(file + " is not a report of clinic " + clinic);
+        }
+        long timestamp = Long.parseLong(lines.get(0).substring(prefix.length(), lines.get(0).length() - ", \"clinicians\":[".length()));
+        // One record per line, each ending with ", " except the last
+        ArrayList<String> clinicianJson = new ArrayList<String>();
+        for (int i = 1; i < lines.size() - 1; i++) {
+            String line = lines.get(i);
+            if (i < lines.size() - 2) {
+                if (!line.endsWith(", ")) {
+                    throw new IOException(file + " has a malformed record on line " + (i + 1));
+                }
+                line = line.substring(0, line.length() - 2);
+            }
+            clinicianJson.add(line);
+        }
+        put(date, timestamp, clinicianJson);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String archiveFile = null;
+        String importDir = null;
+        String exportDir = null;
+        String date = null;
+        boolean gzip = false;
+        for (String arg : args) {
+            if (arg.startsWith("archive=")) {
+                archiveFile = arg.substring("archive=".length());
+            } else if (arg.startsWith("import=")) {
+                importDir = arg.substring("import=".length());
+            } else if (arg.startsWith("export=")) {
+                exportDir = arg.substring("export=".length());
+            } else if (arg.startsWith("date=")) {
+                date = arg.substring("date=".length());
+            } else if (arg.startsWith("gzip=")) {
+                gzip = Boolean.parseBoolean(arg.substring("gzip=".length()));
+            } else {
+                System.out.println("Parameter [" + arg + "] is not a valid archive parameter");
+            }
+        }
+        if (archiveFile == null || (importDir == null) == (exportDir == null)) {
+            System.out.println("java ResultArchive archive=<file> import=<reportdir>");
+            System.out.println("java ResultArchive archive=<file> export=<dir> [date=yyyy-MM-dd] [gzip=false]");
+            return;
+        }
+
+        if (importDir != null) {
+            File[] files = new File(importDir).listFiles();
+            ResultArchive archive = null;
+            int imported = 0;
+            for (int i = 0; files != null && i < files.length; i++) {
+                // thirdnextappt_<clinic>_<date>.txt[.gz]
+                String name = files[i].getName();
+                int dateEnd = name.indexOf(".txt");
+                if (!name.startsWith("thirdnextappt_") || dateEnd < 11 || name.startsWith(".")) {
+                    continue;
+                }
+                String clinic = name.substring("thirdnextappt_".length(), dateEnd - 11);
+                if (archive == null) {
+                    archive = load(new File(archiveFile), clinic);
+                }
+                if (archive.getClinic().equals(clinic)) {
+                    archive.importReport(files[i], name.substring(dateEnd - 10, dateEnd));
+                    ++imported;
+                }
+            }
+            if (archive != null) {
+                archive.save(new File(archiveFile));
+            }
+            System.out.println("Imported " + imported + " report(s) into " + archiveFile);
+        } else {
+            ResultArchive archive = read(new File(archiveFile));
+            List<String> dates = date != null ? Collections.singletonList(date) : archive.getDates();
+            new File(exportDir).mkdirs();
+            for (String reportDate : dates) {
+                if (archive.getTimestamp(reportDate) == null) {
+                    System.out.println("No report of " + reportDate + " in " + archiveFile);
+                    continue;
+                }
+                String name = "thirdnextappt_" + archive.getClinic() + "_" + reportDate + ".txt" + (gzip ? ReportWriter.GZIP_SUFFIX : "");
+                archive.export(reportDate, new File(exportDir, name), gzip);
+            }
+            System.out.println("Exported " + dates.size() + " report(s) to " + exportDir);
+        }
+    }
+}
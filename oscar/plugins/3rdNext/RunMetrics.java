@@ -0,0 +1,255 @@
+/*
+ * Timings and counts of one report run: the latency and rows of every query,
+ * the schedule days scanned for each result, each provider's compute time
+ * and the run's total time.
+ *
+ * Every counter is updated lock-free, so all workers of a run record into
+ * one instance.  At the end of the run the metrics are written in the
+ * Prometheus text format, for a node-exporter textfile collector, and as a
+ * JSON summary.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RunMetrics {
+
+    // Query latency bucket bounds in nanoseconds: 1ms to 10s
+    static final long[] LATENCY_BOUNDS = { 1000000L, 5000000L, 10000000L, 50000000L, 100000000L, 500000000L, 1000000000L, 5000000000L, 10000000000L };
+    // Schedule days scanned per result
+    static final long[] DAYS_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    /**
+     * Counts of values at or below each bound, plus their sum and maximum.
+     */
+    static class Histogram {
+
+        final long[] bounds;
+        final AtomicLongArray counts;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                ++bucket;
+            }
+            counts.incrementAndGet(bucket);
+            sum.addAndGet(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+                // retry
+            }
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+    }
+
+    private final String clinicName;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private long durationNanos = -1;
+    private int reportsWritten = 0;
+    private final ConcurrentHashMap<String, Histogram> queryLatency = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, AtomicLong> queryRows = new ConcurrentHashMap<String, AtomicLong>();
+    private final Histogram daysScanned = new Histogram(DAYS_BOUNDS);
+    private final AtomicLong daysCounted = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> providerNanos = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong errors = new AtomicLong();
+
+    RunMetrics(String clinicName) {
+        this.clinicName = clinicName;
+    }
+
+    /**
+     * @param query name of the query
+     * @param startNanos System.nanoTime() when the query was started
+     * @param rows rows fetched
+     */
+    void recordQuery(String query, long startNanos, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        Histogram histogram = queryLatency.get(query);
+        if (histogram == null) {
+            queryRows.putIfAbsent(query, new AtomicLong());
+            queryLatency.putIfAbsent(query, new Histogram(LATENCY_BOUNDS));
+            histogram = queryLatency.get(query);
+        }
+        histogram.record(nanos);
+        queryRows.get(query).addAndGet(rows);
+    }
+
+    /**
+     * @param days schedule days scanned to find one nth next result
+     */
+    void recordDaysScanned(int days) {
+        daysScanned.record(days);
+    }
+
+    /**
+     * Counts the openings of a schedule day having been counted.
+     */
+    void recordDayCounted() {
+        daysCounted.incrementAndGet();
+    }
+
+    void recordProvider(String provider, long nanos) {
+        providerNanos.put(provider, nanos);
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @return number of queries run
+     */
+    long getQueryCount() {
+        long count = 0;
+        for (Histogram histogram : queryLatency.values()) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    long getErrorCount() {
+        return errors.get();
+    }
+
+    int getReportsWritten() {
+        return reportsWritten;
+    }
+
+    /**
+     * Ends the run.
+     * @param reportsWritten
+     */
+    void finish(int reportsWritten) {
+        this.reportsWritten = reportsWritten;
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Writes thirdnextappt_<clinic>.prom and thirdnextappt_<clinic>.json to a
+     * directory.
+     * @param metricsDir
+     * @throws IOException
+     */
+    void write(String metricsDir) throws IOException {
+        File dir = new File(metricsDir);
+        dir.mkdirs();
+        AtomicFile.write(new File(dir, "thirdnextappt_" + clinicName + ".prom"), toPrometheus());
+        AtomicFile.write(new File(dir, "thirdnextappt_" + clinicName + ".json"), toJson());
+    }
+
+    String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String clinic = "clinic=\"" + escape(clinicName) + "\"";
+
+        sb.append("# HELP thirdnext_query_duration_seconds Latency of the report queries, including fetching their rows.\n");
+        sb.append("# TYPE thirdnext_query_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(queryLatency).entrySet()) {
+            appendHistogram(sb, "thirdnext_query_duration_seconds", clinic + ",query=\"" + entry.getKey() + "\"", entry.getValue(), 1e9);
+        }
+        sb.append("# HELP thirdnext_query_rows_total Rows fetched by the report queries.\n");
+        sb.append("# TYPE thirdnext_query_rows_total counter\n");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(queryRows).entrySet()) {
+            sb.append("thirdnext_query_rows_total{").append(clinic).append(",query=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().get()).append('\n');
+        }
+        sb.append("# HELP thirdnext_days_scanned Schedule days scanned to find one nth next appointment result.\n");
+        sb.append("# TYPE thirdnext_days_scanned histogram\n");
+        appendHistogram(sb, "thirdnext_days_scanned", clinic, daysScanned, 1);
+        sb.append("# HELP thirdnext_days_counted_total Schedule days whose openings were counted.\n");
+        sb.append("# TYPE thirdnext_days_counted_total counter\n");
+        sb.append("thirdnext_days_counted_total{").append(clinic).append("} ").append(daysCounted.get()).append('\n');
+        sb.append("# HELP thirdnext_provider_duration_seconds Time to compute the results of a provider.\n");
+        sb.append("# TYPE thirdnext_provider_duration_seconds gauge\n");
+        for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(providerNanos).entrySet()) {
+            sb.append("thirdnext_provider_duration_seconds{").append(clinic).append(",provider=\"").append(escape(entry.getKey().trim())).append("\"} ").append(entry.getValue() * 1e-9).append('\n');
+        }
+        sb.append("# HELP thirdnext_errors_total Errors while computing results.\n");
+        sb.append("# TYPE thirdnext_errors_total counter\n");
+        sb.append("thirdnext_errors_total{").append(clinic).append("} ").append(errors.get()).append('\n');
+        sb.append("# HELP thirdnext_reports_written Report files written by the run.\n");
+        sb.append("# TYPE thirdnext_reports_written gauge\n");
+        sb.append("thirdnext_reports_written{").append(clinic).append("} ").append(reportsWritten).append('\n');
+        sb.append("# HELP thirdnext_run_duration_seconds Total time of the run.\n");
+        sb.append("# TYPE thirdnext_run_duration_seconds gauge\n");
+        sb.append("thirdnext_run_duration_seconds{").append(clinic).append("} ").append(durationNanos * 1e-9).append('\n');
+        sb.append("# HELP thirdnext_last_run_timestamp_seconds When the run started.\n");
+        sb.append("# TYPE thirdnext_last_run_timestamp_seconds gauge\n");
+        sb.append("thirdnext_last_run_timestamp_seconds{").append(clinic).append("} ").append(startMillis / 1000).append('\n');
+        return sb.toString();
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"clinic\":\"").append(escape(clinicName)).append("\", \"started\":").append(startMillis / 1000);
+        sb.append(", \"durationSeconds\":").append(durationNanos * 1e-9);
+        sb.append(", \"reportsWritten\":").append(reportsWritten).append(", \"errors\":").append(errors.get());
+        sb.append(", \"queries\":{");
+        String separator = "";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(queryLatency).entrySet()) {
+            Histogram histogram = entry.getValue();
+            sb.append(separator).append("\"").append(entry.getKey()).append("\":{\"count\":").append(histogram.getCount());
+            sb.append(", \"rows\":").append(queryRows.get(entry.getKey()).get());
+            sb.append(", \"totalSeconds\":").append(histogram.sum.get() * 1e-9);
+            sb.append(", \"maxSeconds\":").append(histogram.max.get() * 1e-9).append("}");
+            separator = ", ";
+        }
+        sb.append("}, \"daysScanned\":{\"results\":").append(daysScanned.getCount());
+        sb.append(", \"total\":").append(daysScanned.sum.get()).append(", \"max\":").append(daysScanned.max.get()).append("}");
+        sb.append(", \"daysCounted\":").append(daysCounted.get());
+
+        // Slowest providers first
+        ArrayList<Map.Entry<String, Long>> providers = new ArrayList<Map.Entry<String, Long>>(providerNanos.entrySet());
+        Collections.sort(providers, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        sb.append(", \"providers\":[");
+        separator = "";
+        for (Map.Entry<String, Long> entry : providers) {
+            sb.append(separator).append("{\"provider\":\"").append(escape(entry.getKey().trim())).append("\", \"seconds\":").append(entry.getValue() * 1e-9).append("}");
+            separator = ", ";
+        }
+        return sb.append("]}\n").toString();
+    }
+
+    static private void appendHistogram(StringBuilder sb, String name, String labels, Histogram histogram, double unit) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bounds.length; i++) {
+            cumulative += histogram.counts.get(i);
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(unit == 1 ? String.valueOf(histogram.bounds[i]) : String.valueOf(histogram.bounds[i] / unit)).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += histogram.counts.get(histogram.bounds.length);
+        sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum.get() / unit).append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    static private String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
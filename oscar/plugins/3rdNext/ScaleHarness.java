@@ -0,0 +1,649 @@
+/*
+ * End-to-end scale test of the report pipeline on synthetic OSCAR data, by
+ * default 500 providers with five years of schedules and appointments.
+ *
+ * The provider, scheduletemplate, scheduledate and appointment tables are
+ * generated with a fixed seed, up to a fixed last report date rather than
+ * today, so every run on any day does the same work: weekday clinics with the benchmark's
+ * templates, occasional days off and deleted schedule days, and bookings
+ * that are dense in the past and the next few weeks and thin out further
+ * ahead, with a share of cancellations.  The data is loaded into an embedded
+ * H2 2.x database in MySQL mode, whose driver is found on the classpath by
+ * name, or written as snapshot files, and a full batch run generates every
+ * report against it.  Only the run is measured, not the loading.
+ *
+ * The run's wall time, query count and peak heap are compared with the
+ * values recorded in a thresholds file, each times its tolerance ratio
+ * there, and the harness exits with status 1 if any is exceeded or the run
+ * had errors, so a regression in the report path fails the build that runs
+ * it.  Wall time and heap depend on the machine, so record them on the
+ * machine that runs the check:
+ *
+ * java -Xmx2g -cp ".:h2.jar" ScaleHarness [target=h2|snapshot] [providers=500]
+ *     [years=5] [seed=42] [lastdate=2025-01-07] [parallelism=4] [workdir=scale/]
+ *     [thresholds=ScaleThresholds.properties] [record=false]
+ *
+ * With record=true the measured values are written to the thresholds file
+ * instead, for the target and data size, keeping its tolerance ratios.
+ *
+ * With target=compare, by default on 20 providers and one year, nothing is
+ * measured: the same data, with schedule statuses and hours that differ from
+ * the templates only in case and trailing spaces, is loaded into H2 set up
+ * to compare strings as MySQL's default collation does and written as
+ * snapshot files, every report is run against each, and the harness exits
+ * with status 1 unless the reports are the same byte for byte.
+ */
+
+//package thirdnextappointment;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class ScaleHarness {
+
+    static final String H2_DRIVER = "org.h2.Driver";
+    static final int APPT_LENGTH = 15;
+    // Days of schedule generated after the last report date
+    static final int FUTURE_DAYS = 182;
+    static final String LAST_DATE = "2025-01-07";
+    static final String[] MEASURES = { "wallseconds", "queries", "peakheapmb" };
+    // Tolerance ratios of a new thresholds file, by measure
+    static final String[] DEFAULT_TOLERANCES = { "1.5", "1.0", "1.25" };
+    static final String PASSWORD = "scale";
+
+    static final String[][] TABLES = {
+        { "provider", "provider_no", "practitionerNo", "ohip_no" },
+        { "scheduletemplate", "provider_no", "name", "timecode" },
+        { "scheduledate", "id", "sdate", "provider_no", "hour", "status" },
+        { "appointment", "appointment_no", "provider_no", "appointment_date", "start_time", "end_time", "status", "lastupdatedate" }
+    };
+    static final String[] DDL = {
+        "create table provider (provider_no varchar(6) primary key, practitionerNo varchar(20), ohip_no varchar(20))",
+        "create table scheduletemplate (provider_no varchar(6), name varchar(20), timecode text)",
+        "create table scheduledate (id int primary key, sdate date, provider_no varchar(6), hour varchar(255), status char(1))",
+        "create table appointment (appointment_no int primary key, provider_no varchar(6), appointment_date date, start_time time, end_time time, status char(2), lastupdatedate datetime)"
+    };
+    // Created after loading, as in an OSCAR database
+    static final String[] INDEXES = {
+        "create index scheduledate_provider on scheduledate (provider_no, sdate)",
+        "create index appointment_provider on appointment (provider_no, appointment_date)"
+    };
+
+    /**
+     * Receives the generated rows.
+     */
+    interface TableSink {
+
+        void row(int table, String[] values) throws Exception;
+
+        void close() throws Exception;
+    }
+
+    /**
+     * Inserts the rows into a database in batches.
+     */
+    static class DatabaseSink implements TableSink {
+
+        static final int BATCH_ROWS = 1000;
+
+        final Connection conn;
+        final PreparedStatement[] inserts = new PreparedStatement[TABLES.length];
+        final int[] pending = new int[TABLES.length];
+
+        /**
+         * @param conn
+         * @param mysqlCollation whether to compare strings ignoring case
+         * and, in the template join, trailing spaces, as MySQL does
+         * @throws SQLException
+         */
+        DatabaseSink(Connection conn, boolean mysqlCollation) throws SQLException {
+            this.conn = conn;
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            try {
+                for (String[] table : TABLES) {
+                    stmt.execute("drop table if exists " + table[0]);
+                }
+                if (mysqlCollation) {
+                    // Set before any table exists; H2 ignores trailing
+                    // spaces only in comparisons with char columns
+                    stmt.execute("set collation english strength secondary");
+                }
+                for (String ddl : DDL) {
+                    stmt.execute(ddl);
+                }
+                if (mysqlCollation) {
+                    stmt.execute("alter table scheduletemplate alter column name char(20)");
+                }
+            } finally {
+                stmt.close();
+            }
+            for (int t = 0; t < TABLES.length; t++) {
+                StringBuilder sql = new StringBuilder("insert into ").append(TABLES[t][0]).append(" (");
+                StringBuilder params = new StringBuilder();
+                for (int c = 1; c < TABLES[t].length; c++) {
+                    sql.append(c > 1 ? ", " : "").append(TABLES[t][c]);
+                    params.append(c > 1 ? ", ?" : "?");
+                }
+                inserts[t] = conn.prepareStatement(sql.append(") values (").append(params).append(")").toString());
+            }
+        }
+
+        public void row(int table, String[] values) throws SQLException {
+            for (int c = 0; c < values.length; c++) {
+                inserts[table].setString(c + 1, values[c]);
+            }
+            inserts[table].addBatch();
+            if (++pending[table] == BATCH_ROWS) {
+                inserts[table].executeBatch();
+                pending[table] = 0;
+            }
+        }
+
+        public void close() throws SQLException {
+            try {
+                for (int t = 0; t < TABLES.length; t++) {
+                    if (pending[t] > 0) {
+                        inserts[t].executeBatch();
+                    }
+                    inserts[t].close();
+                }
+                Statement stmt = conn.createStatement();
+                try {
+                    for (String index : INDEXES) {
+                        stmt.execute(index);
+                    }
+                } finally {
+                    stmt.close();
+                }
+                conn.commit();
+            } finally {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Writes each table to a tab separated snapshot file.
+     */
+    static class SnapshotSink implements TableSink {
+
+        final Writer[] writers = new Writer[TABLES.length];
+
+        SnapshotSink(File dir) throws IOException {
+            dir.mkdirs();
+            for (int t = 0; t < TABLES.length; t++) {
+                writers[t] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, TABLES[t][0] + ".tsv")), "UTF-8"), 1 << 16);
+                for (int c = 1; c < TABLES[t].length; c++) {
+                    writers[t].write(TABLES[t][c]);
+                    writers[t].write(c + 1 < TABLES[t].length ? '\t' : '\n');
+                }
+            }
+        }
+
+        public void row(int table, String[] values) throws IOException {
+            // The generated values hold no tabs, newlines or backslashes
+            for (int c = 0; c < values.length; c++) {
+                writers[table].write(values[c] != null ? values[c] : "\\N");
+                writers[table].write(c + 1 < values.length ? '\t' : '\n');
+            }
+        }
+
+        public void close() throws IOException {
+            for (Writer writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    private final int numProviders;
+    private final int years;
+    private final long seed;
+    private final int lastDay;
+    // Whether to vary the case and trailing spaces of schedule days
+    boolean collationVariants = false;
+    // Rows generated per table
+    final long[] rows = new long[TABLES.length];
+
+    /**
+     * @param numProviders
+     * @param years of schedules up to the last report date
+     * @param seed
+     * @param lastDate last report date, in format "yyyy-MM-dd"
+     */
+    ScaleHarness(int numProviders, int years, long seed, String lastDate) {
+        this.numProviders = numProviders;
+        this.years = years;
+        this.seed = seed;
+        this.lastDay = ReportDate.toEpochDay(lastDate);
+    }
+
+    String getProviderNums() {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < numProviders; p++) {
+            sb.append(p > 0 ? "," : "").append(getProviderNo(p));
+        }
+        return sb.toString();
+    }
+
+    int getFirstDay() {
+        return lastDay - years * 365;
+    }
+
+    static String getProviderNo(int p) {
+        return String.valueOf(100 + p);
+    }
+
+    /**
+     * Generates every table.
+     * @param sink
+     * @throws Exception
+     */
+    void generate(TableSink sink) throws Exception {
+        Random random = new Random(seed);
+        int firstDay = getFirstDay();
+        int scheduleId = 0;
+        int appointmentNo = 0;
+
+        // Templates shared by the clinic, and a full and a morning day of
+        // each provider; every tenth provider books in 10 minute slots
+        String[] publicTemplates = { ThirdNextBenchmark.makeTimecode(random, 15), ThirdNextBenchmark.makeTimecode(random, 15) };
+        for (int i = 0; i < publicTemplates.length; i++) {
+            emit(sink, 1, new String[] { "Public", "clinic" + i, publicTemplates[i] });
+        }
+        for (int p = 0; p < numProviders; p++) {
+            String providerNo = getProviderNo(p);
+            emit(sink, 0, new String[] { providerNo, "cps" + providerNo, "msp" + providerNo });
+
+            int granularity = p % 10 == 9 ? 10 : 15;
+            String fullDay = ThirdNextBenchmark.makeTimecode(random, granularity);
+            String morning = fullDay.substring(0, 12 * 60 / granularity) + fullDay.substring(12 * 60 / granularity).replaceAll(".", "_");
+            emit(sink, 1, new String[] { providerNo, "full", fullDay });
+            emit(sink, 1, new String[] { providerNo, "am", morning });
+
+            for (int day = firstDay; day <= lastDay + FUTURE_DAYS; day++) {
+                int weekDay = ReportCalendar.getWeekDay(day);
+                // Weekdays only, with days off
+                if (weekDay == Calendar.SATURDAY || weekDay == Calendar.SUNDAY || random.nextInt(100) < 15) {
+                    continue;
+                }
+                String date = ReportDate.toDateString(day);
+                int choice = random.nextInt(10);
+                String hour = choice < 6 ? "full" : choice < 8 ? "am" : "clinic" + (choice - 8);
+                String status = random.nextInt(50) == 0 ? "D" : "A";
+                String[] row = { String.valueOf(++scheduleId), date, providerNo, hour, status };
+                if (collationVariants) {
+                    // Values that MySQL matches to the plain ones, picked
+                    // without drawing from the random sequence
+                    row[3] = scheduleId % 5 == 0 ? hour.toUpperCase(Locale.ROOT) : hour;
+                    row[3] = scheduleId % 7 == 0 ? row[3] + "  " : row[3];
+                    row[4] = scheduleId % 3 == 0 ? status.toLowerCase(Locale.ROOT) : status;
+                }
+                emit(sink, 2, row);
+                if (!status.equals("A")) {
+                    continue;
+                }
+
+                // Booked solid in the past and the next days, thinning out
+                // over the following weeks
+                int daysAhead = day - lastDay;
+                double density = daysAhead <= 0 ? 0.85 : 0.05 + 0.9 * Math.exp(-daysAhead / 21.0);
+                AppointmentIndex.Day appts = ThirdNextBenchmark.makeDay(random, granularity, density);
+                for (int i = 0; i < appts.count; i++) {
+                    String apptStatus = random.nextInt(20) == 0 ? "C" : "t";
+                    emit(sink, 3, new String[] { String.valueOf(++appointmentNo), providerNo, date, toTime(appts.startMins[i]), toTime(appts.endMins[i]), apptStatus, date + " 08:00:00" });
+                }
+            }
+        }
+        sink.close();
+    }
+
+    private void emit(TableSink sink, int table, String[] values) throws Exception {
+        sink.row(table, values);
+        ++rows[table];
+    }
+
+    /**
+     * @param minutes past midnight
+     * @return time in format "HH:mm:00"
+     */
+    static String toTime(int minutes) {
+        char[] time = { (char) ('0' + minutes / 600), (char) ('0' + minutes / 60 % 10), ':', (char) ('0' + minutes % 60 / 10), (char) ('0' + minutes % 10), ':', '0', '0' };
+        return new String(time);
+    }
+
+    /**
+     * Sums the peak usage of every heap memory pool since the last reset.
+     */
+    static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    static void deleteFiles(File dir, String prefix) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().startsWith(prefix)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param parallelism
+     * @param reportDir
+     * @param metricsDir
+     * @return the settings of a run of every report over the generated
+     * data, without the database or snapshot to read it from
+     */
+    Properties getRunProperties(String parallelism, File reportDir, File metricsDir) {
+        Properties prop = new Properties();
+        prop.setProperty("clinic", "scale");
+        prop.setProperty("schedsymbols", "1,2,3,6,s,S,U,W");
+        prop.setProperty("providernums", getProviderNums());
+        prop.setProperty("apptlength", String.valueOf(APPT_LENGTH));
+        prop.setProperty("reportdates", ReportDate.toDateString(getFirstDay()) + ".." + ReportDate.toDateString(lastDay));
+        prop.setProperty("weekday", "tuesday");
+        prop.setProperty("parallelism", parallelism);
+        prop.setProperty("reportdir", reportDir.getPath());
+        prop.setProperty("metricsdir", metricsDir.getPath());
+        return prop;
+    }
+
+    static String getDatabaseUrl(File dbFile) {
+        // scheduledate.hour is a keyword of H2 2.x
+        return "jdbc:h2:" + dbFile.getAbsolutePath() + ";MODE=MySQL;NON_KEYWORDS=HOUR";
+    }
+
+    static void setDatabase(Properties prop, String dbUrl) {
+        prop.setProperty("dburl", dbUrl);
+        prop.setProperty("dbuser", "sa");
+        prop.setProperty("dbpassword", PASSWORD);
+    }
+
+    /**
+     * Runs every report of the settings.
+     * @param settings
+     * @return the metrics of the run, or null if no connection could be
+     * opened
+     * @throws Exception
+     */
+    static RunMetrics runReports(ReportSettings settings) throws Exception {
+        ConnectionPool pool = ConnectionPool.open(settings, null);
+        if (pool == null) {
+            return null;
+        }
+        ReportRunner runner = new ReportRunner(settings, pool);
+        try {
+            runner.run();
+            return runner.getLastMetrics();
+        } finally {
+            runner.close();
+            pool.close();
+        }
+    }
+
+    /**
+     * Loads the data with collation variants into H2, set up to compare as
+     * MySQL does, and into snapshot files, runs every report against each
+     * and compares the reports.
+     * @param dir
+     * @param parallelism
+     * @return whether both runs wrote every report, the same byte for byte
+     * @throws Exception
+     */
+    boolean compare(File dir, String parallelism) throws Exception {
+        System.out.println("Generating " + numProviders + " providers with " + years + " years of schedules in " + dir + " (compare)...");
+        collationVariants = true;
+        dir.mkdirs();
+        deleteFiles(dir, "oscar.");
+        String dbUrl = getDatabaseUrl(new File(dir, "oscar"));
+        File snapshotDir = new File(dir, "snapshot");
+        final TableSink database = new DatabaseSink(DriverManager.getConnection(dbUrl, "sa", PASSWORD), true);
+        final TableSink snapshot = new SnapshotSink(snapshotDir);
+        generate(new TableSink() {
+            public void row(int table, String[] values) throws Exception {
+                database.row(table, values);
+                snapshot.row(table, values);
+            }
+
+            public void close() throws Exception {
+                try {
+                    database.close();
+                } finally {
+                    snapshot.close();
+                }
+            }
+        });
+
+        File[] reportDirs = { new File(dir, "reports-h2"), new File(dir, "reports-snapshot") };
+        int expectedReports = 0;
+        for (int r = 0; r < reportDirs.length; r++) {
+            deleteFiles(reportDirs[r], "thirdnextappt_");
+            Properties prop = getRunProperties(parallelism, reportDirs[r], new File(dir, "metrics"));
+            if (r == 0) {
+                setDatabase(prop, dbUrl);
+            } else {
+                prop.setProperty("snapshotdir", snapshotDir.getPath());
+            }
+            ReportSettings settings = ReportSettings.parse(prop);
+            RunMetrics metrics = settings != null ? runReports(settings) : null;
+            if (metrics == null) {
+                return false;
+            }
+            expectedReports = settings.getCalendar().toList().size();
+            if (metrics.getErrorCount() > 0 || metrics.getReportsWritten() != expectedReports) {
+                System.out.println("The run against " + reportDirs[r] + " had " + metrics.getErrorCount() + " error(s) and wrote " + metrics.getReportsWritten() + " of " + expectedReports + " reports.");
+                return false;
+            }
+        }
+
+        int differing = 0;
+        String[] names = reportDirs[0].list();
+        Arrays.sort(names);
+        for (String name : names) {
+            File snapshotReport = new File(reportDirs[1], name);
+            if (!snapshotReport.exists() || !Arrays.equals(readFile(new File(reportDirs[0], name)), readFile(snapshotReport))) {
+                System.out.println("Differs: " + name);
+                ++differing;
+            }
+        }
+        System.out.println(differing + " of " + expectedReports + " reports differ between H2 and the snapshot");
+        return differing == 0;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties param = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                param.setProperty(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+            } else {
+                System.out.println("Parameter [" + arg + "] is not a valid scale harness parameter");
+            }
+        }
+        String target = param.getProperty("target", "h2");
+        if (!target.equals("h2") && !target.equals("snapshot") && !target.equals("compare")) {
+            System.out.println("The target parameter must be 'h2', 'snapshot' or 'compare'.");
+            System.exit(2);
+        }
+        boolean compare = target.equals("compare");
+        File thresholdsFile = new File(param.getProperty("thresholds", "ScaleThresholds.properties"));
+        boolean record = Boolean.parseBoolean(param.getProperty("record", "false"));
+        Properties thresholds = new Properties();
+        if (thresholdsFile.exists()) {
+            InputStream input = new FileInputStream(thresholdsFile);
+            try {
+                thresholds.load(input);
+            } finally {
+                input.close();
+            }
+        }
+        // The data size of the thresholds, unless overridden
+        int numProviders = Integer.parseInt(param.getProperty("providers", compare ? "20" : thresholds.getProperty("providers", "500")));
+        int years = Integer.parseInt(param.getProperty("years", compare ? "1" : thresholds.getProperty("years", "5")));
+        long seed = Long.parseLong(param.getProperty("seed", thresholds.getProperty("seed", "42")));
+        String lastDate = param.getProperty("lastdate", thresholds.getProperty("lastdate", LAST_DATE));
+        if (!lastDate.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            System.out.println("The lastdate parameter must look like 'lastdate=2025-01-07'.");
+            System.exit(2);
+        }
+        File workDir = new File(param.getProperty("workdir", "scale/"));
+
+        ScaleHarness harness = new ScaleHarness(numProviders, years, seed, lastDate);
+        String parallelism = param.getProperty("parallelism", "4");
+        if (!target.equals("snapshot")) {
+            try {
+                Class.forName(H2_DRIVER);
+            } catch (ClassNotFoundException e) {
+                System.out.println("The H2 driver " + H2_DRIVER + " is not on the classpath; add h2.jar or use target=snapshot.");
+                System.exit(2);
+            }
+        }
+        if (compare) {
+            System.exit(harness.compare(new File(workDir, "compare"), parallelism) ? 0 : 1);
+        }
+        Properties prop = harness.getRunProperties(parallelism, new File(workDir, "reports"), new File(workDir, "metrics"));
+
+        System.out.println("Generating " + numProviders + " providers with " + years + " years of schedules in " + workDir + " (" + target + ")...");
+        long start = System.nanoTime();
+        workDir.mkdirs();
+        if (target.equals("h2")) {
+            deleteFiles(workDir, "oscar.");
+            String dbUrl = getDatabaseUrl(new File(workDir, "oscar"));
+            harness.generate(new DatabaseSink(DriverManager.getConnection(dbUrl, "sa", PASSWORD), false));
+            setDatabase(prop, dbUrl);
+        } else {
+            File snapshotDir = new File(workDir, "snapshot");
+            harness.generate(new SnapshotSink(snapshotDir));
+            prop.setProperty("snapshotdir", snapshotDir.getPath());
+        }
+        System.out.println("Generated " + harness.rows[2] + " schedule days and " + harness.rows[3] + " appointments in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // Every report is written by the run
+        deleteFiles(new File(workDir, "reports"), "thirdnextappt_");
+        ReportSettings settings = ReportSettings.parse(prop);
+        if (settings == null) {
+            System.exit(2);
+        }
+        resetPeakHeap();
+        start = System.nanoTime();
+        RunMetrics metrics = runReports(settings);
+        if (metrics == null) {
+            System.exit(2);
+        }
+        double wallSeconds = (System.nanoTime() - start) * 1e-9;
+        long peakHeapMb = getPeakHeap() >> 20;
+        int expectedReports = settings.getCalendar().toList().size();
+
+        Map<String, Double> measured = new HashMap<String, Double>();
+        measured.put("wallseconds", wallSeconds);
+        measured.put("queries", (double) metrics.getQueryCount());
+        measured.put("peakheapmb", (double) peakHeapMb);
+
+        boolean failed = false;
+        if (metrics.getErrorCount() > 0 || metrics.getReportsWritten() != expectedReports) {
+            System.out.println("The run had " + metrics.getErrorCount() + " error(s) and wrote " + metrics.getReportsWritten() + " of " + expectedReports + " reports.");
+            failed = true;
+        }
+        boolean sameSize = String.valueOf(numProviders).equals(thresholds.getProperty("providers"))
+                && String.valueOf(years).equals(thresholds.getProperty("years"))
+                && String.valueOf(seed).equals(thresholds.getProperty("seed"))
+                && lastDate.equals(thresholds.getProperty("lastdate", LAST_DATE));
+        System.out.println(String.format("%-14s %14s %14s %14s", "metric", "measured", "recorded", "threshold"));
+        for (int m = 0; m < MEASURES.length; m++) {
+            String key = MEASURES[m];
+            String recorded = sameSize ? thresholds.getProperty(target + "." + key) : null;
+            double tolerance = Double.parseDouble(thresholds.getProperty(key + ".tolerance", DEFAULT_TOLERANCES[m]));
+            double threshold = recorded != null ? Double.parseDouble(recorded) * tolerance : 0;
+            boolean exceeded = recorded != null && measured.get(key) > threshold;
+            System.out.println(String.format(Locale.ROOT, "%-14s %14.1f %14s %14s%s", key, measured.get(key), recorded != null ? recorded : "-",
+                    recorded != null ? String.format(Locale.ROOT, "%.1f", threshold) : "-", exceeded ? "  EXCEEDED" : ""));
+            failed |= exceeded && !record;
+        }
+        if (!sameSize && !record) {
+            System.out.println("No thresholds for this data size in " + thresholdsFile);
+        }
+
+        if (record) {
+            TreeMap<String, String> values = new TreeMap<String, String>();
+            for (String key : thresholds.stringPropertyNames()) {
+                if (sameSize || key.endsWith(".tolerance")) {
+                    values.put(key, thresholds.getProperty(key));
+                }
+            }
+            for (int m = 0; m < MEASURES.length; m++) {
+                if (!values.containsKey(MEASURES[m] + ".tolerance")) {
+                    values.put(MEASURES[m] + ".tolerance", DEFAULT_TOLERANCES[m]);
+                }
+            }
+            values.put("providers", String.valueOf(numProviders));
+            values.put("years", String.valueOf(years));
+            values.put("seed", String.valueOf(seed));
+            values.put("lastdate", lastDate);
+            values.put(target + ".wallseconds", String.format(Locale.ROOT, "%.1f", wallSeconds));
+            values.put(target + ".queries", String.valueOf(metrics.getQueryCount()));
+            values.put(target + ".peakheapmb", String.valueOf(peakHeapMb));
+            StringBuilder sb = new StringBuilder();
+            sb.append("# Measured ScaleHarness runs, per target, for the data size below; a run\n");
+            sb.append("# fails if a measure exceeds its recorded value times its tolerance.\n");
+            sb.append("# Wall time and heap depend on the machine; record them where the check runs.\n");
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+            }
+            AtomicFile.write(thresholdsFile, sb.toString());
+            System.out.println("Recorded the thresholds in " + thresholdsFile);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
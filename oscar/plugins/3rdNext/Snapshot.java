@@ -0,0 +1,283 @@
+/*
+ * The scheduletemplate, scheduledate, appointment and provider tables of a
+ * clinic read from flat files instead of MySQL, for computing reports
+ * offline from an exported dump.
+ *
+ * The snapshot directory holds one file per table, named after the table
+ * with a .csv, .tsv or .txt extension, each with a header line of column
+ * names; see SnapshotReader for the formats.  Only the rows of the
+ * configured providers are kept, already grouped the way the report queries
+ * return them, so a SnapshotDao answers them without a database.  A snapshot
+ * can also be captured from a database, to scan the same data many times.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Snapshot {
+
+    static final String[] EXTENSIONS = { ".csv", ".tsv", ".txt" };
+
+    /**
+     * One scheduledate row.
+     */
+    static class ScheduleRow {
+
+        final String date;
+        final String hour;
+        final String status;
+        final long id;
+
+        ScheduleRow(String date, String hour, String status, long id) {
+            this.date = date;
+            this.hour = hour;
+            this.status = status;
+            this.id = id;
+        }
+    }
+
+    /**
+     * The appointments of one provider and day while they are read.
+     */
+    static private class DayBuilder {
+
+        int[] startMins = new int[8];
+        int[] endMins = new int[8];
+        int count = 0;
+        // All rows, including cancelled appointments, for the fingerprint
+        long rows = 0;
+        String lastUpdate = null;
+
+        void add(int startMin, int endMin) {
+            if (count == startMins.length) {
+                int[] grownStart = new int[count * 2];
+                int[] grownEnd = new int[count * 2];
+                System.arraycopy(startMins, 0, grownStart, 0, count);
+                System.arraycopy(endMins, 0, grownEnd, 0, count);
+                startMins = grownStart;
+                endMins = grownEnd;
+            }
+            // Keep the day ordered by start time, as the query returns it
+            int i = count;
+            while (i > 0 && startMins[i - 1] > startMin) {
+                startMins[i] = startMins[i - 1];
+                endMins[i] = endMins[i - 1];
+                --i;
+            }
+            startMins[i] = startMin;
+            endMins[i] = endMin;
+            ++count;
+        }
+    }
+
+    final ArrayList<String[]> templates = new ArrayList<String[]>();
+    // Templates as provider and name, by the collation keys of both
+    final HashMap<String, HashMap<String, ArrayList<String[]>>> templateKeys = new HashMap<String, HashMap<String, ArrayList<String[]>>>();
+    final HashMap<String, ArrayList<ScheduleRow>> schedules = new HashMap<String, ArrayList<ScheduleRow>>();
+    final HashMap<String, TreeMap<String, AppointmentIndex.Day>> appointments = new HashMap<String, TreeMap<String, AppointmentIndex.Day>>();
+    final HashMap<String, TreeMap<String, Long>> appointmentFingerprints = new HashMap<String, TreeMap<String, Long>>();
+    final HashMap<String, String[]> providerNumbers = new HashMap<String, String[]>();
+
+    /**
+     * Reads the tables of a snapshot.
+     * @param snapshotDir
+     * @param providers the provider numbers to keep rows of
+     * @return
+     * @throws IOException if a table file is missing or cannot be read
+     */
+    static Snapshot load(String snapshotDir, String[] providers) throws IOException {
+        final Snapshot snapshot = new Snapshot();
+        final HashSet<String> wanted = new HashSet<String>();
+        for (String provider : providers) {
+            wanted.add(provider.trim());
+            snapshot.schedules.put(provider.trim(), new ArrayList<ScheduleRow>());
+        }
+        File dir = new File(snapshotDir);
+
+        SnapshotReader.read(findTable(dir, "scheduletemplate"), new String[] { "provider_no", "name", "timecode" }, new SnapshotReader.RowHandler() {
+            public void row(String[] fields) {
+                if (fields[0] == null || fields[1] == null || fields[2] == null) {
+                    return;
+                }
+                snapshot.addTemplate(fields[0], fields[1], fields[2]);
+            }
+        });
+
+        SnapshotReader.read(findTable(dir, "scheduledate"), new String[] { "sdate", "provider_no", "hour", "status", "id" }, new SnapshotReader.RowHandler() {
+            public void row(String[] fields) {
+                if (fields[0] == null || fields[1] == null || !wanted.contains(fields[1].trim())) {
+                    return;
+                }
+                long id = fields[4] != null ? Long.parseLong(fields[4].trim()) : 0;
+                snapshot.schedules.get(fields[1].trim()).add(new ScheduleRow(toDate(fields[0]), fields[2], fields[3], id));
+            }
+        });
+        for (ArrayList<ScheduleRow> rows : snapshot.schedules.values()) {
+            Collections.sort(rows, new Comparator<ScheduleRow>() {
+                public int compare(ScheduleRow a, ScheduleRow b) {
+                    return a.date.compareTo(b.date);
+                }
+            });
+        }
+
+        final HashMap<String, TreeMap<String, DayBuilder>> days = new HashMap<String, TreeMap<String, DayBuilder>>();
+        for (String provider : wanted) {
+            days.put(provider, new TreeMap<String, DayBuilder>());
+        }
+        SnapshotReader.read(findTable(dir, "appointment"), new String[] { "appointment_date", "provider_no", "start_time", "end_time", "status", "lastupdatedate" }, new SnapshotReader.RowHandler() {
+            public void row(String[] fields) {
+                if (fields[0] == null || fields[1] == null || !wanted.contains(fields[1].trim())) {
+                    return;
+                }
+                String date = toDate(fields[0]);
+                TreeMap<String, DayBuilder> providerDays = days.get(fields[1].trim());
+                DayBuilder day = providerDays.get(date);
+                if (day == null) {
+                    day = new DayBuilder();
+                    providerDays.put(date, day);
+                }
+                ++day.rows;
+                if (fields[5] != null && (day.lastUpdate == null || fields[5].compareTo(day.lastUpdate) > 0)) {
+                    day.lastUpdate = fields[5];
+                }
+                // As the query: status not like '%C%', which excludes null
+                // and, under MySQL's default collation, ignores case
+                if (fields[4] != null && fields[4].toUpperCase().indexOf('C') < 0 && fields[2] != null && fields[3] != null) {
+                    day.add(AppointmentIndex.toMinutes(fields[2]), AppointmentIndex.toMinutes(fields[3]));
+                }
+            }
+        });
+        for (Map.Entry<String, TreeMap<String, DayBuilder>> entry : days.entrySet()) {
+            TreeMap<String, AppointmentIndex.Day> providerAppointments = new TreeMap<String, AppointmentIndex.Day>();
+            TreeMap<String, Long> fingerprints = new TreeMap<String, Long>();
+            for (Map.Entry<String, DayBuilder> dayEntry : entry.getValue().entrySet()) {
+                DayBuilder day = dayEntry.getValue();
+                if (day.count > 0) {
+                    providerAppointments.put(dayEntry.getKey(), new AppointmentIndex.Day(day.startMins, day.endMins, day.count));
+                }
+                fingerprints.put(dayEntry.getKey(), ReportDao.getAppointmentFingerprint(day.rows, day.lastUpdate));
+            }
+            snapshot.appointments.put(entry.getKey(), providerAppointments);
+            snapshot.appointmentFingerprints.put(entry.getKey(), fingerprints);
+        }
+
+        SnapshotReader.read(findTable(dir, "provider"), new String[] { "provider_no", "practitionerNo", "ohip_no" }, new SnapshotReader.RowHandler() {
+            public void row(String[] fields) {
+                if (fields[0] != null && wanted.contains(fields[0].trim())) {
+                    snapshot.providerNumbers.put(fields[0].trim(), new String[] { fields[1], fields[2] });
+                }
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Reads the templates and the schedule and appointments of providers
+     * from a database into memory, so they can be scanned many times
+     * without querying it again.
+     * @param dao
+     * @param providers
+     * @param dateFrom in format "yyyy-MM-dd"
+     * @return
+     * @throws SQLException
+     */
+    static Snapshot capture(ReportDao dao, String[] providers, String dateFrom) throws SQLException {
+        final Snapshot snapshot = new Snapshot();
+        dao.loadTemplates(new TemplateCache(new String[0]) {
+            @Override
+            void put(String provider, String name, String timecode) {
+                snapshot.addTemplate(provider, name, timecode);
+            }
+        });
+        for (String provider : providers) {
+            ArrayList<ScheduleRow> rows = new ArrayList<ScheduleRow>();
+            dao.loadScheduleRows(provider, dateFrom, rows);
+            Collections.sort(rows, new Comparator<ScheduleRow>() {
+                public int compare(ScheduleRow a, ScheduleRow b) {
+                    return a.date.compareTo(b.date);
+                }
+            });
+            snapshot.schedules.put(provider.trim(), rows);
+
+            final TreeMap<String, AppointmentIndex.Day> days = new TreeMap<String, AppointmentIndex.Day>();
+            String dateTo = rows.isEmpty() ? dateFrom : rows.get(rows.size() - 1).date;
+            dao.streamAppointments(provider, dateFrom, dateTo, new AppointmentIndex.DayHandler() {
+                public void day(String date, AppointmentIndex.Day day) {
+                    // The streamed arrays are reused, so keep copies
+                    days.put(date, new AppointmentIndex.Day(Arrays.copyOf(day.startMins, day.count), Arrays.copyOf(day.endMins, day.count), day.count));
+                }
+            });
+            snapshot.appointments.put(provider.trim(), days);
+        }
+        return snapshot;
+    }
+
+    private void addTemplate(String provider, String name, String timecode) {
+        templates.add(new String[] { provider, name, timecode });
+        HashMap<String, ArrayList<String[]>> names = templateKeys.get(toCollationKey(provider));
+        if (names == null) {
+            names = new HashMap<String, ArrayList<String[]>>();
+            templateKeys.put(toCollationKey(provider), names);
+        }
+        ArrayList<String[]> keys = names.get(toCollationKey(name));
+        if (keys == null) {
+            keys = new ArrayList<String[]>();
+            names.put(toCollationKey(name), keys);
+        }
+        keys.add(new String[] { provider, name });
+    }
+
+    /**
+     * MySQL's default collation compares strings ignoring case and trailing
+     * spaces, so the report queries' filters and joins match values that
+     * differ only in those; the snapshot compares their keys instead.
+     * @param value
+     * @return value without trailing spaces, in upper case, or null
+     */
+    static String toCollationKey(String value) {
+        if (value == null) {
+            return null;
+        }
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            --end;
+        }
+        return value.substring(0, end).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @param dir
+     * @param table
+     * @return the file of the table
+     * @throws IOException if there is none
+     */
+    static File findTable(File dir, String table) throws IOException {
+        for (String extension : EXTENSIONS) {
+            File f = new File(dir, table + extension);
+            if (f.exists()) {
+                return f;
+            }
+        }
+        throw new IOException("Snapshot table " + table + " not found in " + dir);
+    }
+
+    /**
+     * @param value a date, or a date and time as exported from a datetime
+     * @return the date in format "yyyy-MM-dd"
+     */
+    static private String toDate(String value) {
+        return value.length() > 10 ? value.substring(0, 10) : value;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Answers the report queries from a snapshot instead of a database, with
+ * the same results as ReportDao, so the slot scan runs unchanged on
+ * exported tables.  The snapshot is shared by the DAOs of every worker.
+ */
+
+//package thirdnextappointment;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class SnapshotDao extends ReportDao {
+
+    private final Snapshot snapshot;
+
+    SnapshotDao(Snapshot snapshot) {
+        super(null);
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    boolean ping() {
+        return true;
+    }
+
+    @Override
+    void loadTemplates(TemplateCache templates) {
+        long start = System.nanoTime();
+        for (String[] template : snapshot.templates) {
+            templates.put(template[0], template[1], template[2]);
+        }
+        record("template", start, snapshot.templates.size());
+    }
+
+    @Override
+    void loadSchedule(String provider, String dateFrom, List<String> schedDates, List<String[]> templateKeys) {
+        long start = System.nanoTime();
+        int rows = 0;
+        String prov = provider.trim();
+        ArrayList<Snapshot.ScheduleRow> schedule = snapshot.schedules.get(prov);
+        HashMap<String, ArrayList<String[]>> own = snapshot.templateKeys.get(Snapshot.toCollationKey(prov));
+        HashMap<String, ArrayList<String[]>> shared = snapshot.templateKeys.get(Snapshot.toCollationKey("Public"));
+        if (own == shared) {
+            shared = null;
+        }
+        if (schedule != null) {
+            for (Snapshot.ScheduleRow row : schedule) {
+                // Compared as the query compares them, see toCollationKey
+                if (row.date.compareTo(dateFrom) < 0 || !"A".equals(Snapshot.toCollationKey(row.status)) || row.hour == null) {
+                    continue;
+                }
+                // As the query's join, a day matches the provider's own
+                // templates and the Public ones of the same name, each with
+                // the provider and name the template has
+                String hour = Snapshot.toCollationKey(row.hour);
+                rows += addTemplates(row.date, own != null ? own.get(hour) : null, schedDates, templateKeys);
+                rows += addTemplates(row.date, shared != null ? shared.get(hour) : null, schedDates, templateKeys);
+            }
+        }
+        record("schedule", start, rows);
+    }
+
+    static private int addTemplates(String date, ArrayList<String[]> keys, List<String> schedDates, List<String[]> templateKeys) {
+        if (keys == null) {
+            return 0;
+        }
+        for (String[] key : keys) {
+            schedDates.add(date);
+            templateKeys.add(key);
+        }
+        return keys.size();
+    }
+
+    @Override
+    void loadScheduleRows(String provider, String dateFrom, List<Snapshot.ScheduleRow> rows) {
+        long start = System.nanoTime();
+        int count = 0;
+        ArrayList<Snapshot.ScheduleRow> schedule = snapshot.schedules.get(provider.trim());
+        if (schedule != null) {
+            for (Snapshot.ScheduleRow row : schedule) {
+                if (row.date.compareTo(dateFrom) >= 0) {
+                    rows.add(row);
+                    ++count;
+                }
+            }
+        }
+        record("schedule_rows", start, count);
+    }
+
+    @Override
+    void streamAppointments(String provider, String dateFrom, String dateTo, AppointmentIndex.DayHandler handler) throws SQLException {
+        long start = System.nanoTime();
+        int rows = 0;
+        TreeMap<String, AppointmentIndex.Day> days = snapshot.appointments.get(provider.trim());
+        if (days != null && dateFrom.compareTo(dateTo) <= 0) {
+            for (Map.Entry<String, AppointmentIndex.Day> day : days.subMap(dateFrom, true, dateTo, true).entrySet()) {
+                handler.day(day.getKey(), day.getValue());
+                rows += day.getValue().count;
+            }
+        }
+        record("appointment", start, rows);
+    }
+
+    @Override
+    void loadFingerprints(String provider, String dateFrom, Map<String, Long> fingerprints) {
+        long start = System.nanoTime();
+        String prov = provider.trim();
+        TreeMap<String, Long> appointments = snapshot.appointmentFingerprints.get(prov);
+        if (appointments != null) {
+            for (Map.Entry<String, Long> day : appointments.tailMap(dateFrom, true).entrySet()) {
+                addFingerprint(fingerprints, day.getKey(), day.getValue());
+            }
+        }
+        record("appointment_watermark", start, appointments != null ? appointments.size() : 0);
+
+        start = System.nanoTime();
+        int rows = 0;
+        ArrayList<Snapshot.ScheduleRow> schedule = snapshot.schedules.get(prov);
+        if (schedule != null) {
+            for (Snapshot.ScheduleRow row : schedule) {
+                if (row.date.compareTo(dateFrom) >= 0) {
+                    addFingerprint(fingerprints, row.date, getScheduleFingerprint(row.id, row.hour, row.status));
+                    ++rows;
+                }
+            }
+        }
+        record("schedule_watermark", start, rows);
+    }
+
+    @Override
+    void loadProviders(List<String> providers, ProviderCache cache) {
+        long start = System.nanoTime();
+        int rows = 0;
+        for (String provider : providers) {
+            String[] numbers = snapshot.providerNumbers.get(provider);
+            if (numbers != null) {
+                cache.put(provider, numbers[0], numbers[1]);
+                ++rows;
+            }
+        }
+        record("provider", start, rows);
+    }
+
+    @Override
+    void close() {
+    }
+}
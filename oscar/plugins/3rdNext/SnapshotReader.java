@@ -0,0 +1,232 @@
+/*
+ * Streaming parser of a table exported to a flat file, with a header line of
+ * column names.
+ *
+ * A .csv file is comma separated with "double quoted" fields; any other file
+ * is tab separated with backslash escapes, as written by SELECT ... INTO
+ * OUTFILE.  Only a field that is exactly the unescaped \N, unquoted in a
+ * .csv file, is null; an escaped backslash followed by N, or the text NULL,
+ * is a string.  The file is memory mapped a window at a time and parsed byte
+ * by byte, so files of any size are read at disk speed without reading them
+ * into the heap; only the wanted columns are decoded into strings.
+ */
+
+//package thirdnextappointment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class SnapshotReader {
+
+    // Bytes mapped at a time
+    static final long WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * Receives the wanted columns of each row.
+     */
+    interface RowHandler {
+
+        /**
+         * @param fields the wanted columns, in the order asked for; a null
+         * or missing column is null
+         */
+        void row(String[] fields);
+    }
+
+    private final boolean csv;
+    private final String[] columns;
+    private final RowHandler handler;
+    // Index among the wanted columns of each file column, or -1
+    private int[] wanted;
+    private String[] header = new String[16];
+    private int headerCount = 0;
+    private String[] fields;
+    private int column = 0;
+    private final ByteArrayOutputStream field = new ByteArrayOutputStream(64);
+    private boolean quoted = false;
+    private boolean inQuotes = false;
+    private boolean afterQuote = false;
+    private boolean escaped = false;
+    // Whether the field started with the unescaped null marker \N
+    private boolean nullMarker = false;
+    private boolean lineStarted = false;
+    private boolean lastWasCr = false;
+
+    private SnapshotReader(boolean csv, String[] columns, RowHandler handler) {
+        this.csv = csv;
+        this.columns = columns;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads a table file.
+     * @param file
+     * @param columns names of the wanted columns, in any case
+     * @param handler
+     * @return number of rows read
+     * @throws IOException
+     */
+    static long read(File file, String[] columns, RowHandler handler) throws IOException {
+        SnapshotReader reader = new SnapshotReader(file.getName().toLowerCase().endsWith(".csv"), columns, handler);
+        long rows = 0;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += WINDOW) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                while (buffer.hasRemaining()) {
+                    if (reader.accept(buffer.get())) {
+                        ++rows;
+                    }
+                }
+            }
+            if (reader.endLine()) {
+                ++rows;
+            }
+        } finally {
+            input.close();
+        }
+        return rows;
+    }
+
+    /**
+     * @return whether a row was passed to the handler
+     */
+    private boolean accept(byte b) {
+        if (b == '\n' && lastWasCr) {
+            lastWasCr = false;
+            return false;
+        }
+        lastWasCr = false;
+        if (csv) {
+            if (inQuotes) {
+                if (b == '"') {
+                    inQuotes = false;
+                    afterQuote = true;
+                } else {
+                    field.write(b);
+                }
+                lineStarted = true;
+                return false;
+            }
+            if (b == '"') {
+                // "" inside a quoted field is a quote
+                if (afterQuote) {
+                    field.write(b);
+                }
+                inQuotes = true;
+                quoted = true;
+                afterQuote = false;
+                lineStarted = true;
+                return false;
+            }
+            afterQuote = false;
+        } else if (escaped) {
+            escaped = false;
+            switch (b) {
+                case 't':
+                    field.write('\t');
+                    break;
+                case 'n':
+                    field.write('\n');
+                    break;
+                case 'r':
+                    field.write('\r');
+                    break;
+                case '0':
+                    field.write(0);
+                    break;
+                case 'N':
+                    // \N is a null field if nothing else is in the field
+                    nullMarker = field.size() == 0;
+                    field.write('\\');
+                    field.write('N');
+                    break;
+                default:
+                    field.write(b);
+                    break;
+            }
+            return false;
+        } else if (b == '\\') {
+            escaped = true;
+            lineStarted = true;
+            return false;
+        }
+
+        if (b == (csv ? ',' : '\t')) {
+            endField();
+            lineStarted = true;
+            return false;
+        }
+        if (b == '\n' || b == '\r') {
+            lastWasCr = b == '\r';
+            return endLine();
+        }
+        field.write(b);
+        lineStarted = true;
+        return false;
+    }
+
+    private void endField() {
+        String value = null;
+        boolean isWanted = wanted == null || (column < wanted.length && wanted[column] >= 0);
+        if (isWanted) {
+            try {
+                value = field.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            if (csv ? !quoted && value.equals("\\N") : nullMarker && value.length() == 2) {
+                value = null;
+            }
+        }
+        if (wanted == null) {
+            if (headerCount == header.length) {
+                String[] grown = new String[headerCount * 2];
+                System.arraycopy(header, 0, grown, 0, headerCount);
+                header = grown;
+            }
+            header[headerCount++] = value;
+        } else if (isWanted) {
+            fields[wanted[column]] = value;
+        }
+        ++column;
+        field.reset();
+        quoted = false;
+        nullMarker = false;
+    }
+
+    /**
+     * @return whether a row was passed to the handler
+     */
+    private boolean endLine() {
+        if (!lineStarted) {
+            return false;
+        }
+        endField();
+        lineStarted = false;
+        column = 0;
+        if (wanted == null) {
+            wanted = new int[headerCount];
+            for (int i = 0; i < headerCount; i++) {
+                wanted[i] = -1;
+                for (int j = 0; j < columns.length; j++) {
+                    if (columns[j].equalsIgnoreCase(header[i] != null ? header[i].trim() : null)) {
+                        wanted[i] = j;
+                    }
+                }
+            }
+            fields = new String[columns.length];
+            return false;
+        }
+        handler.row(fields);
+        fields = new String[columns.length];
+        return true;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Sweep mode: compares the third next available appointment under several
+ * what-if scenarios, each a set of bookable schedule symbols and an
+ * appointment length, without writing any reports.
+ *
+ * The schedule and appointments of every provider are read and decoded
+ * once into a snapshot held in memory (or taken from snapshotdir), and
+ * every scenario is evaluated against that shared data in parallel.  The
+ * lengths of one symbol set are counted in the same pass over a provider's
+ * schedule.  The result is a table with one row per scenario, printed and
+ * written to thirdnextappt_<clinic>_sweep.tsv in the metricsdir, not in the
+ * reportdir, so it is not shipped with the reports.
+ */
+
+//package thirdnextappointment;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SweepRunner {
+
+    private final ReportSettings settings;
+    private final ConnectionPool pool;
+
+    SweepRunner(ReportSettings settings, ConnectionPool pool) {
+        this.settings = settings;
+        this.pool = pool;
+    }
+
+    /**
+     * Evaluates every scenario and writes the comparison table.
+     * @return the table file
+     * @throws Exception
+     */
+    File run() throws Exception {
+        final ArrayList<String> reportDates = settings.getCalendar().toList();
+        if (reportDates.isEmpty()) {
+            System.out.println("No report dates to sweep.");
+            return null;
+        }
+        String dateFrom = Collections.min(reportDates);
+
+        final Snapshot snapshot;
+        ReportDao dao = pool.acquire();
+        try {
+            snapshot = Snapshot.capture(dao, settings.providers, dateFrom);
+        } finally {
+            pool.release(dao);
+        }
+
+        final int[] lengths = settings.sweepLengths;
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // Results of each symbol set and provider, by length and report date
+        ArrayList<List<Future<int[][]>>> results = new ArrayList<List<Future<int[][]>>>();
+        try {
+            for (String symbols : settings.sweepSymbols) {
+                final TemplateCache templates = new TemplateCache(symbols.split(","), settings.intervalModel);
+                templates.load(new SnapshotDao(snapshot));
+                ArrayList<Future<int[][]>> futures = new ArrayList<Future<int[][]>>();
+                for (final String provider : settings.providers) {
+                    futures.add(executor.submit(new Callable<int[][]>() {
+                        public int[][] call() throws SQLException {
+                            return evaluate(new SnapshotDao(snapshot), templates, provider, reportDates, lengths);
+                        }
+                    }));
+                }
+                results.add(futures);
+            }
+
+            StringBuilder table = new StringBuilder();
+            table.append("symbols\tapptlength\tmedian\tmean\tnotfound");
+            for (String provider : settings.providers) {
+                table.append('\t').append(provider.trim());
+            }
+            table.append('\n');
+            for (int s = 0; s < settings.sweepSymbols.length; s++) {
+                ArrayList<int[][]> providerDays = new ArrayList<int[][]>();
+                for (Future<int[][]> future : results.get(s)) {
+                    providerDays.add(future.get());
+                }
+                for (int lengthIdx = 0; lengthIdx < lengths.length; lengthIdx++) {
+                    appendRow(table, settings.sweepSymbols[s], lengths[lengthIdx], providerDays, lengthIdx);
+                }
+            }
+
+            System.out.print(table);
+            File file = new File(settings.metricsDir, "thirdnextappt_" + settings.clinicName + "_sweep.tsv");
+            AtomicFile.write(file, table.toString());
+            return file;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the days to the third next available appointment of one
+     * provider for every length and report date.
+     * @param dao
+     * @param templates decoded with the scenario's symbols
+     * @param provider
+     * @param reportDates in format "yyyy-MM-dd"
+     * @param lengths appointment lengths in minutes
+     * @return days by length and report date, -1 where there is no third
+     * next available appointment
+     * @throws SQLException
+     */
+    static int[][] evaluate(ReportDao dao, TemplateCache templates, String provider, List<String> reportDates, int[] lengths) throws SQLException {
+        int[][] days = new int[lengths.length][reportDates.size()];
+        ProviderTimeline timeline = ProviderTimeline.load(dao, provider, Collections.min(reportDates), templates, lengths);
+        for (int lengthIdx = 0; lengthIdx < lengths.length; lengthIdx++) {
+            HashMap<String, String> nthDates = timeline.findNthNext(reportDates, 3, lengthIdx);
+            for (int d = 0; d < reportDates.size(); d++) {
+                String nthDate = nthDates.get(reportDates.get(d));
+                days[lengthIdx][d] = nthDate != null ? ReportDate.getDaysBetween(reportDates.get(d), nthDate) : -1;
+            }
+        }
+        return days;
+    }
+
+    /**
+     * Appends the row of one scenario: the median and mean days over all
+     * providers and report dates, the number with no third next available
+     * appointment, and each provider's mean.
+     */
+    static private void appendRow(StringBuilder table, String symbols, int length, List<int[][]> providerDays, int lengthIdx) {
+        int total = 0;
+        for (int[][] days : providerDays) {
+            total += days[lengthIdx].length;
+        }
+        int[] found = new int[total];
+        int numFound = 0;
+        StringBuilder providerMeans = new StringBuilder();
+        for (int[][] days : providerDays) {
+            long sum = 0;
+            int count = 0;
+            for (int day : days[lengthIdx]) {
+                if (day >= 0) {
+                    found[numFound++] = day;
+                    sum += day;
+                    ++count;
+                }
+            }
+            providerMeans.append('\t').append(count > 0 ? format((double) sum / count) : "-");
+        }
+        Arrays.sort(found, 0, numFound);
+        long sum = 0;
+        for (int i = 0; i < numFound; i++) {
+            sum += found[i];
+        }
+        String median = "-";
+        String mean = "-";
+        if (numFound > 0) {
+            median = format(numFound % 2 == 1 ? found[numFound / 2] : (found[numFound / 2 - 1] + found[numFound / 2]) / 2.0);
+            mean = format((double) sum / numFound);
+        }
+        table.append(symbols).append('\t').append(length).append('\t').append(median).append('\t').append(mean)
+                .append('\t').append(total - numFound).append(providerMeans).append('\n');
+    }
+
+    static private String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Schedule templates decoded once per template and shared by all providers
+ * and report dates.
+ *
+ * A template's timecode holds one character per slot of the day.  It is
+ * decoded into a bitmap of the slots whose code is one of the configured
+ * schedule symbols, plus the slot duration, so the slot scan tests bits
+ * instead of creating and comparing a String per slot.
+ */
+
+//package thirdnextappointment;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TemplateCache {
+
+    /**
+     * Decoded schedule template.
+     */
+    static class Template {
+
+        final String timecode;
+        // Slot length in minutes
+        final int duration;
+        // Number of slots that fit in the day
+        final int slots;
+        // Bit n is set if slot n is bookable
+        final long[] bookable;
+
+        Template(String timecode, int duration, int slots, long[] bookable) {
+            this.timecode = timecode;
+            this.duration = duration;
+            this.slots = slots;
+            this.bookable = bookable;
+        }
+
+        boolean isBookable(int slot) {
+            return (bookable[slot >>> 6] & (1L << slot)) != 0;
+        }
+    }
+
+    private final String[] schedSymbols;
+    private final boolean intervalModel;
+    private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+    private volatile boolean loaded = false;
+
+    /**
+     * @param schedSymbols time codes of bookable slots
+     */
+    TemplateCache(String[] schedSymbols) {
+        this(schedSymbols, false);
+    }
+
+    /**
+     * @param schedSymbols time codes of bookable slots
+     * @param intervalModel true to count openings with BookingIntervals
+     * rather than the slot scan
+     */
+    TemplateCache(String[] schedSymbols, boolean intervalModel) {
+        this.schedSymbols = schedSymbols;
+        this.intervalModel = intervalModel;
+    }
+
+    String[] getSchedSymbols() {
+        return schedSymbols;
+    }
+
+    boolean isIntervalModel() {
+        return intervalModel;
+    }
+
+    /**
+     * Looks up a template, reading all templates from the database on first
+     * use.
+     * @param dao
+     * @param provider provider number of the template, or "Public"
+     * @param name
+     * @return the decoded template, or null if there is no such template
+     * @throws SQLException
+     */
+    Template get(ReportDao dao, String provider, String name) throws SQLException {
+        if (!loaded) {
+            load(dao);
+        }
+        return templates.get(key(provider, name));
+    }
+
+    /**
+     * (Re)reads all templates.  Templates whose timecode has not changed
+     * keep their decoded form.
+     * @param dao
+     * @throws SQLException
+     */
+    synchronized void load(ReportDao dao) throws SQLException {
+        dao.loadTemplates(this);
+        loaded = true;
+    }
+
+    void put(String provider, String name, String timecode) {
+        String key = key(provider, name);
+        Template template = templates.get(key);
+        if (template == null || !template.timecode.equals(timecode)) {
+            templates.put(key, decode(timecode, schedSymbols));
+        }
+    }
+
+    /**
+     * @return a fingerprint of every template's name and timecode, which
+     * changes when any template is added or edited
+     */
+    long getFingerprint() {
+        long fingerprint = 0;
+        for (Map.Entry<String, Template> entry : templates.entrySet()) {
+            fingerprint += (entry.getKey().hashCode() * 31L + entry.getValue().timecode.hashCode()) * 0x9E3779B97F4A7C15L;
+        }
+        return fingerprint;
+    }
+
+    static private String key(String provider, String name) {
+        return provider + '\u0000' + name;
+    }
+
+    /**
+     * Decodes a template timecode.
+     * @param timecode one character per slot
+     * @param schedSymbols time codes of bookable slots
+     * @return
+     */
+    static Template decode(String timecode, String[] schedSymbols) {
+        int length = timecode.length();
+        int duration = length > 0 ? ProviderTimeline.DAY_MINS / length : 0;
+        int slots = 0;
+        if (duration > 0) {
+            slots = Math.min(length, (ProviderTimeline.DAY_MINS + duration - 1) / duration);
+        }
+        long[] bookable = new long[(slots + 63) >>> 6];
+        for (int slot = 0; slot < slots; ++slot) {
+            char code = timecode.charAt(slot);
+            for (String symbol : schedSymbols) {
+                if (symbol.length() == 1 && symbol.charAt(0) == code) {
+                    bookable[slot >>> 6] |= 1L << slot;
+                    break;
+                }
+            }
+        }
+        return new Template(timecode, duration, slots, bookable);
+    }
+}
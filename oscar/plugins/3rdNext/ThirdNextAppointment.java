@@ -23,16 +23,19 @@
 //package thirdnextappointment;
 
 // Import required packages
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.io.StringReader;
 import java.sql.*;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,12 +47,15 @@ public class ThirdNextAppointment {
     static final String JDBC_DRIVER = "com.mysql.jdbc.Driver";
     
     static Connection getDBConnection(String dbUrl, String user, String pass) {
-        try {
-            // Register JDBC driver
-            Class.forName(JDBC_DRIVER);
-        } catch (ClassNotFoundException ex) {
-            //Handle errors for Class.forName
-            ex.printStackTrace(System.out);
+        // Register JDBC driver; a driver of another database, such as the
+        // embedded one of ScaleHarness, registers itself
+        if (dbUrl.startsWith("jdbc:mysql:")) {
+            try {
+                Class.forName(JDBC_DRIVER);
+            } catch (ClassNotFoundException ex) {
+                //Handle errors for Class.forName
+                ex.printStackTrace(System.out);
+            }
         }
         // Open a connection
         Connection conn = null;
@@ -68,26 +74,6 @@ public class ThirdNextAppointment {
         return conn;
     }
     
-    static private String getProviderInfo(Connection conn, String provider) {
-        String providerSQL = "select practitionerNo, ohip_no from provider where provider_no=" + provider;
-        ResultSet rs;
-        Statement stmt;
-        String providerInfo = null;
-        try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(providerSQL);
-            if (rs.next()) {
-                String cpsId = rs.getString("practitionerNo");
-                String mspNo = rs.getString("ohip_no");
-                providerInfo = "\"cpsid\":\"" + cpsId + "\", \"msp\":\"" + mspNo + "\"";
-            }
-        } catch (SQLException se) {
-            se.printStackTrace(System.out);
-            System.err.println(providerSQL);
-        }
-        return providerInfo;
-    }
-
     /**
      * Wrapper to method from
      * src/main/java/oscar/oscarReport/reportByTemplate/ThirdApptTimeReporter.java
@@ -100,137 +86,236 @@ public class ThirdNextAppointment {
      * @return 
      */
     static String generateReport(Connection conn, String dateFrom, String schedSymbolsStr, String provider, int apptLength) {
-        int numDays = -1;
-
-        String[] schedSymbols = null;
+        ArrayList<String> dates = new ArrayList<String>();
+        dates.add(dateFrom);
+        TemplateCache templates = null;
         if (schedSymbolsStr != null) {
-            schedSymbols = schedSymbolsStr.split(",");
+            templates = new TemplateCache(schedSymbolsStr.split(","));
         }
-        
-        if (dateFrom == null || provider == null || schedSymbols == null) {
-            return "dateFrom and provider must be set and at least one schedule symbol must be set";
+        ReportDao dao = new ReportDao(conn);
+        ProviderCache providers = null;
+        if (provider != null) {
+            providers = ProviderCache.load(dao, new String[] { provider }, null);
         }
+        HashMap<String, String> reports = generateReports(dao, dates, templates, providers, provider, new int[] { 3 }, new int[] { apptLength }, null, null);
+        dao.close();
+        String report = reports.get(dateFrom);
+        return report != null ? report : reports.get(null);
+    }
 
-        String scheduleSQL = "select scheduledate.provider_no, scheduletemplate.timecode, scheduledate.sdate from scheduletemplate, scheduledate where scheduletemplate.name=scheduledate.hour and scheduledate.sdate >= '" + dateFrom + "' and  scheduledate.provider_no in (" + provider + ") and scheduledate.status = 'A' and (scheduletemplate.provider_no=scheduledate.provider_no or scheduletemplate.provider_no='Public') order by scheduledate.sdate";
-        String apptSQL = "";//select start_time, end_time from appointment where provider_no = '" + provider_no + "' and status not like '%C%' and appointment_date = '";
-        String schedDate = "";
-        ResultSet rs;
-        ResultSet rs2;
-        int unbooked;
-        Statement stmt;
-        Statement stmt2;
-        try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(scheduleSQL);
-            int duration;
-            String timecodes, code;
-            String tmpApptSQL;
-            String apptTime;
-
-            int dayMins = 24 * 60;
-            int iHours, iMins, apptHour_s, apptMin_s, apptHour_e, apptMin_e;
-            int codePos;
-            int latestApptHour, latestApptMin;
-            int third = 3;
-            int numAppts = 0;
-            boolean codeMatch;
-            while (rs.next() && numAppts < third) {
-                timecodes = rs.getString("timecode");
-
-                duration = dayMins / timecodes.length();
-
-                schedDate = rs.getString("sdate");
-                tmpApptSQL = "select start_time, end_time from appointment where provider_no = '" + rs.getString("provider_no") + "' and status not like '%C%' and appointment_date = '" + schedDate + "' order by start_time asc";
+    /**
+     * Produces the report of one provider for many report dates with a single
+     * load of the provider's schedule and one sweep forward through it.
+     * @param dao
+     * @param reportDates in format "yyyy-MM-dd"
+     * @param templates decoded schedule templates, shared by all providers
+     * @param providers provider numbers, shared by all providers
+     * @param provider
+     * @param nths which next available appointments to report, for example
+     * 1, 2, 3 and 5 for the first, second, third and fifth; the third is
+     * always reported
+     * @param apptLengths appointment lengths in minutes; the first is the
+     * length of the "3rdnext" result
+     * @param indexDir if not null, the provider's capacity index in this
+     * directory is brought up to date and the results are found from it
+     * @param horizons if not null, receives for each report date the last
+     * schedule date its results depend on, or "" if they depend on all later
+     * dates; nothing is added if the results could not be computed
+     * @return clinician JSON keyed by report date, or an error message keyed
+     * by null if the parameters are invalid
+     */
+    static HashMap<String, String> generateReports(ReportDao dao, List<String> reportDates, TemplateCache templates, ProviderCache providers, String provider, int[] nths, int[] apptLengths, String indexDir, Map<String, String> horizons) {
+        HashMap<String, String> reports = new HashMap<String, String>();
 
-                stmt2 = conn.createStatement();
-                rs2 = stmt2.executeQuery(tmpApptSQL);
-                codePos = 0;
-                latestApptHour = latestApptMin = 0;
-                unbooked = 0;
-                for (int iTotalMin = 0; iTotalMin < dayMins; iTotalMin += duration) {
-                    code = timecodes.substring(codePos, codePos + 1);
-                    ++codePos;
-                    iHours = iTotalMin / 60;
-                    iMins = iTotalMin % 60;
-                    while (rs2.next()) {
-                        apptTime = rs2.getString("start_time");
-                        apptHour_s = Integer.parseInt(apptTime.substring(0, 2));
-                        apptMin_s = Integer.parseInt(apptTime.substring(3, 5));
+        if (reportDates == null || reportDates.isEmpty() || reportDates.contains(null) || provider == null || templates == null || providers == null) {
+            reports.put(null, "dateFrom and provider must be set and at least one schedule symbol must be set");
+            return reports;
+        }
 
-                        if (iHours == apptHour_s && iMins == apptMin_s) {
-                            apptTime = rs2.getString("end_time");
-                            apptHour_e = Integer.parseInt(apptTime.substring(0, 2));
-                            apptMin_e = Integer.parseInt(apptTime.substring(3, 5));
+        // Every (nth, length) pair, starting with the third next of the first
+        // length that is reported as "3rdnext"
+        int third = 3;
+        ArrayList<int[]> metrics = new ArrayList<int[]>();
+        metrics.add(new int[] { third, 0 });
+        for (int lengthIdx = 0; lengthIdx < apptLengths.length; lengthIdx++) {
+            for (int nth : nths) {
+                if (nth != third || lengthIdx != 0) {
+                    metrics.add(new int[] { nth, lengthIdx });
+                }
+            }
+        }
+        String[] metricNames = new String[metrics.size()];
+        for (int m = 0; m < metrics.size(); m++) {
+            int length = apptLengths[metrics.get(m)[1]];
+            metricNames[m] = getOrdinal(metrics.get(m)[0]) + "next" + (length != apptLengths[0] ? "_" + length : "");
+        }
 
-                            if (apptHour_e > latestApptHour || (apptHour_e == latestApptHour && apptMin_e > latestApptMin)) {
-                                latestApptHour = apptHour_e;
-                                latestApptMin = apptMin_e;
-                            }
-                        } else {
-                            rs2.previous();
-                            break;
+        HashMap<String, int[]> numDays = new HashMap<String, int[]>();
+        for (String reportDate : reportDates) {
+            int[] days = new int[metrics.size()];
+            Arrays.fill(days, -1);
+            numDays.put(reportDate, days);
+        }
+        try {
+            String dateFrom = Collections.min(reportDates);
+            ProviderTimeline timeline;
+            if (indexDir != null) {
+                CapacityIndex index = CapacityIndex.update(dao, provider, dateFrom, templates, CapacityIndex.getFile(indexDir, provider));
+                timeline = ProviderTimeline.load(index, dao, provider, dateFrom, apptLengths);
+            } else {
+                timeline = ProviderTimeline.load(dao, provider, dateFrom, templates, apptLengths);
+            }
+            HashMap<String, String> lastDates = new HashMap<String, String>();
+            for (int m = 0; m < metrics.size(); m++) {
+                HashMap<String, String> nthDates = timeline.findNthNext(reportDates, metrics.get(m)[0], metrics.get(m)[1]);
+                for (String reportDate : reportDates) {
+                    String nthDate = nthDates.get(reportDate);
+                    String lastDate = lastDates.get(reportDate);
+                    if (nthDate != null) {
+                        numDays.get(reportDate)[m] = ReportDate.getDaysBetween(reportDate, nthDate);
+                        if (lastDate == null || (lastDate.length() > 0 && nthDate.compareTo(lastDate) > 0)) {
+                            lastDates.put(reportDate, nthDate);
                         }
-
+                    } else {
+                        lastDates.put(reportDate, "");
                     }
+                }
+            }
+            if (horizons != null) {
+                horizons.putAll(lastDates);
+            }
+        } catch (SQLException se) {
+            se.printStackTrace(System.out);
+            if (dao.getMetrics() != null) {
+                dao.getMetrics().recordError();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+            if (dao.getMetrics() != null) {
+                dao.getMetrics().recordError();
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace(System.out);
+            if (dao.getMetrics() != null) {
+                dao.getMetrics().recordError();
+            }
+        }
 
-                    codeMatch = false;
-                    for (int schedIdx = 0; schedIdx < schedSymbols.length; ++schedIdx) {
-
-                        if (code.equals(schedSymbols[schedIdx])) {
-                            codeMatch = true;
-                            //System.out.println("codeMatched " + codeMatch);
-                            if (iHours > latestApptHour || (iHours == latestApptHour && iMins > latestApptMin)) {
-                                unbooked += duration;
-
-                                if (unbooked >= apptLength) {
-                                    unbooked = 0;
-                                    ++numAppts;
-                                    if (numAppts == third) {
-                                        break;
-                                    }
-                                }
-                            }
+        String providerInfo = providers.getProviderInfo(provider);
 
-                        }
-                    } //end for schedule symbols
+        for (String reportDate : reportDates) {
+            reports.put(reportDate, makeClinicianJson(numDays.get(reportDate), metricNames, reportDate, provider, providerInfo));
+        }
+        return reports;
+    }
 
-                    if (numAppts == third) {
-                        break;
-                    }
+    /**
+     * @param n
+     * @return n with its English ordinal suffix, for example "1st" or "3rd"
+     */
+    static String getOrdinal(int n) {
+        String suffix = "th";
+        if (n % 100 < 11 || n % 100 > 13) {
+            switch (n % 10) {
+                case 1:
+                    suffix = "st";
+                    break;
+                case 2:
+                    suffix = "nd";
+                    break;
+                case 3:
+                    suffix = "rd";
+                    break;
+                default:
+                    break;
+            }
+        }
+        return n + suffix;
+    }
 
-                    if (!codeMatch) {
-                        unbooked = 0;
-                    }
+    static private String makeClinicianJson(int[] numDays, String[] metricNames, String requestDate, String provider, String providerInfo) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"clinician\":\"").append(provider).append("\", ").append(providerInfo).append(", ").append("\"3rdnext\":").append(numDays[0]);
+        for (int m = 1; m < numDays.length; m++) {
+            sb.append(", \"").append(metricNames[m]).append("\":").append(numDays[m]);
+        }
+        return sb.append("}").toString();
+    }
+    
+    /**
+     * Generates the reports of one provider on a connection borrowed from
+     * the pool.
+     */
+    static class ProviderReportTask implements Callable<HashMap<String, String>> {
 
-                } //end for
+        private final ConnectionPool pool;
+        private final List<String> reportDates;
+        private final TemplateCache templates;
+        private final ProviderCache providers;
+        private final String provider;
+        private final int[] nths;
+        private final int[] apptLengths;
+        private final String indexDir;
+        private final WatermarkStore watermarks;
 
-            } //end while
+        ProviderReportTask(ConnectionPool pool, List<String> reportDates, TemplateCache templates, ProviderCache providers, String provider, int[] nths, int[] apptLengths, String indexDir, WatermarkStore watermarks) {
+            this.pool = pool;
+            this.reportDates = reportDates;
+            this.templates = templates;
+            this.providers = providers;
+            this.provider = provider;
+            this.nths = nths;
+            this.apptLengths = apptLengths;
+            this.indexDir = indexDir;
+            this.watermarks = watermarks;
+        }
 
-            String calcDaysSQL = "select datediff('" + schedDate + "','" + dateFrom + "')";
-            if (numAppts == third) {
-                rs = stmt.executeQuery(calcDaysSQL);
-                if (rs.next()) {
-                    numDays = rs.getInt(1);
+        public HashMap<String, String> call() throws InterruptedException {
+            ReportDao dao = pool.acquire();
+            long start = System.nanoTime();
+            try {
+                if (watermarks == null) {
+                    return generateReports(dao, reportDates, templates, providers, provider, nths, apptLengths, indexDir, null);
+                }
+                return generateChangedReports(dao);
+            } finally {
+                if (dao.getMetrics() != null) {
+                    dao.getMetrics().recordProvider(provider, System.nanoTime() - start);
                 }
+                pool.release(dao);
             }
-
-        } catch (SQLException se) {
-            se.printStackTrace(System.out);
-        } catch (NumberFormatException e) {
-            e.printStackTrace(System.out);
         }
 
-        // String sql = scheduleSQL + ";\n " + apptSQL;
-        // System.out.println("sql: " + sql);
-        String providerInfo = getProviderInfo(conn, provider);
-        
-        return makeClinicianJson(numDays, dateFrom, schedDate, provider, providerInfo);
+        /**
+         * Recomputes only the report dates whose schedule days have changed
+         * since the results in the watermark store were made, and takes the
+         * others from the store.
+         */
+        private HashMap<String, String> generateChangedReports(ReportDao dao) {
+            TreeMap<String, Long> fingerprints = new TreeMap<String, Long>();
+            try {
+                dao.loadFingerprints(provider, Collections.min(reportDates), fingerprints);
+            } catch (SQLException se) {
+                se.printStackTrace(System.out);
+                return generateReports(dao, reportDates, templates, providers, provider, nths, apptLengths, indexDir, null);
+            }
+            String providerInfo = providers.getProviderInfo(provider);
+            List<String> staleDates = watermarks.getStaleDates(provider, reportDates, fingerprints, providerInfo);
+            HashMap<String, String> horizons = new HashMap<String, String>();
+            HashMap<String, String> reports = new HashMap<String, String>();
+            if (!staleDates.isEmpty()) {
+                reports = generateReports(dao, staleDates, templates, providers, provider, nths, apptLengths, indexDir, horizons);
+            }
+            watermarks.update(provider, reportDates, fingerprints, providerInfo, reports, horizons);
+            for (String reportDate : reportDates) {
+                if (!reports.containsKey(reportDate)) {
+                    reports.put(reportDate, watermarks.getResult(provider, reportDate));
+                }
+            }
+            return reports;
+        }
     }
 
-    static private String makeClinicianJson(int numDays, String requestDate, String thirdDate, String provider, String providerInfo) {
-        return "{\"clinician\":\"" + provider + "\", " + providerInfo + ", " + "\"3rdnext\":" + numDays + "}";
-    }
-    
     static boolean isValidParameter(String s) {
         if (s.contains("=")) {
             String parts[] = s.split("=");
@@ -243,8 +328,6 @@ public class ThirdNextAppointment {
 
     public static void main(String[] args) {
         
-        Boolean errorOccurred = false;
-        
         // Requires all commandline configuration parameters, if any, to be in
         //   the format parmname=value
         // Parameters on the commandline override parameters in the property
@@ -261,6 +344,7 @@ public class ThirdNextAppointment {
         
         // Get properties file with configuration parameters from class path
         Properties prop = new Properties();
+        Properties overrides = new Properties();
         InputStream input;
         
         input = ThirdNextAppointment.class.getClassLoader().getResourceAsStream(CONFIG_FILE);
@@ -273,6 +357,7 @@ public class ThirdNextAppointment {
             prop.load(input);
             if (!commandlineProperties.isEmpty()) {  // override with command line properties if any
                 prop.load(new StringReader(commandlineProperties));
+                overrides.load(new StringReader(commandlineProperties));
             }
         } catch (IOException ex) {
             Logger.getLogger(ThirdNextAppointment.class.getName()).log(Level.SEVERE, null, ex);
@@ -284,136 +369,63 @@ public class ThirdNextAppointment {
             }
         }
         
-        String dbUrl = prop.getProperty("dburl");
-        if (dbUrl == null || dbUrl.isEmpty()) {
-            System.err.println("The database url parameter 'dburl' must be set.");
-            errorOccurred = true;
-        }
-        String dbUser = prop.getProperty("dbuser");
-        if (dbUser == null || dbUser.isEmpty()) {
-            System.err.println("The database user parameter 'dbuser' must be set.");
-            errorOccurred = true;
-        }
-        String dbPassword = prop.getProperty("dbpassword");
-        if (dbPassword == null || dbPassword.isEmpty()) {
-            System.err.println("The database user password parameter 'dbpassword' must be set.");
-            errorOccurred = true;
-        }
-        String schedSymbols = prop.getProperty("schedsymbols");
-        if (schedSymbols == null || schedSymbols.isEmpty()) {
-            System.err.println("The schedule symbols parameter 'schedsymbols' must be set.");
-            System.err.println("  It should look something like 'schedsymbols=1,2,3'");
-            errorOccurred = true;
-        }
-        String providerNums = prop.getProperty("providernums");
-        if (providerNums == null || providerNums.isEmpty()) {
-            System.err.println("The provider number parameter of the service providers must be set.");
-            System.err.println("  It should look something like 'providernums=101,110'");
-            errorOccurred = true;
-        }
-        Integer apptLength = null;
-        String apptLengthStr = prop.getProperty("apptlength");
-        if (apptLengthStr == null || apptLengthStr.isEmpty()) {
-            System.err.println("The appointment length parameter apptlength must be set.");
-            System.err.println("  It should look something like 'apptlength=15'");
-            errorOccurred = true;
-        } else {
-            try {
-                apptLength = Integer.parseInt(prop.getProperty("apptlength"));
-            } catch (NumberFormatException nf) {
-                System.err.println("The apptlength parameter is invalid.");
-                errorOccurred = true;
+        if ("fleet".equalsIgnoreCase(prop.getProperty("mode"))) {
+            FleetRunner fleet = FleetRunner.create(prop, overrides);
+            if (fleet != null) {
+                try {
+                    int failed = fleet.run();
+                    if (failed > 0) {
+                        System.out.println(failed + " clinic(s) failed");
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace(System.out);
+                }
             }
+            return;
         }
-//        String dateFrom = prop.getProperty("datefrom");
-//        if (dateFrom == null || dateFrom.isEmpty()) {
-//            System.err.println("The date from parameter must be set.");
-//            System.err.println("  It should look something like 'datefrom=2015-06-09'");
-//            errorOccurred = true;
-//        }
-        String clinicName = prop.getProperty("clinic");
-        if (clinicName == null || clinicName.isEmpty()) {
-            System.err.println("The clinic name parameter must be set.");
-            errorOccurred = true;
-        }
-        
-        String earliestDate = prop.getProperty("earliest");
-        if (earliestDate == null || earliestDate.isEmpty()) {
-            System.err.println("The earliestDate parameter must be set.");
-            errorOccurred = true;
-        }
-        
-        String weekDay = prop.getProperty("weekday");
-        if (weekDay == null || weekDay.isEmpty()) {
-            System.err.println("The weekday paramater must be set.");
-            errorOccurred = true;
-        }
-            
-        if (errorOccurred) {
-            System.err.println("Set unconfigured parameters in '" + CONFIG_FILE + "'");
-            System.err.println("  or pass them in on the command-line in the format 'parm=value'");
+
+        ReportSettings settings = ReportSettings.parse(prop);
+        if (settings == null) {
             return;
         }
         
-        Connection conn = null;        
+        ConnectionPool pool = null;
+        ReportRunner runner = null;
         try {            
             //System.out.println("Connecting to database...");
-            conn = getDBConnection(dbUrl, dbUser, dbPassword);
-
-            
-            String[] providers = null;
-            if (providerNums != null) {
-                providers = providerNums.split(",");
-            }
-
-            ArrayList<String> weekDays = ReportDate.getDates(earliestDate, weekDay);
+            pool = ConnectionPool.open(settings, null);
             
-            String filepath = null;
-            
-            if (conn != null && providers != null) {
-                DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-                for (String dateFrom: weekDays) {
-                    filepath = "./reports/thirdnextappt_" + clinicName + "_" + dateFrom + ".txt";
-                    File f = new File(filepath);
-                    if (!f.exists()) {
-                        PrintWriter out = new PrintWriter(filepath);
-                        long timestamp = df.parse(dateFrom).getTime() / 1000; // time in seconds rather than milliseconds
-                        out.println("{\"clinic\":\"" + clinicName + "\", \"date\":" + timestamp + ", \"clinicians\":[");
-                        int index = 0;
-                        for (String provider : providers) {
-                            out.print(generateReport(conn, dateFrom, schedSymbols, provider, apptLength));
-                            index++;
-                            if (index < providers.length) {
-                                out.println(", ");
-                            } else {
-                                out.println("");
-                            }
+            if (pool != null && settings.mode.equals("sweep")) {
+                new SweepRunner(settings, pool).run();
+            } else if (pool != null) {
+                runner = new ReportRunner(settings, pool);
+                if (settings.mode.equals("service")) {
+                    final ReportService service = new ReportService(runner);
+                    service.start();
+                    // Serve until the process is stopped
+                    final Object stopped = new Object();
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            service.stop();
                         }
-                        out.println("]}");
-                        out.close();
+                    });
+                    synchronized (stopped) {
+                        stopped.wait();
                     }
+                } else {
+                    runner.run();
                 }
             }            
-
-            //STEP 6: Clean-up environment
-            if (conn != null) {
-                conn.close();
-            }
-        } catch (SQLException se) {
-            //Handle errors for JDBC
-            se.printStackTrace(System.out);
         } catch (Exception e) {
-            //Handle errors for Class.forName
             e.printStackTrace(System.out);
         } finally {
             //finally block used to close resources
-            try {
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (SQLException se) {
-                se.printStackTrace(System.out);
-            }//end finally try
+            if (runner != null) {
+                runner.close();
+            }
+            if (pool != null) {
+                pool.close();
+            }
         }//end try
         //System.out.println("Goodbye!");
     }//end main
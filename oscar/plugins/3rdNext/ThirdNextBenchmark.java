@@ -0,0 +1,323 @@
+/*
+ * Offline micro-benchmarks for the third next appointment slot scan and the
+ * report date calendar.  No database is needed: schedules and appointments
+ * are generated synthetically for a range of clinic sizes, template
+ * granularities and booking densities.
+ *
+ * Each benchmark is warmed up and then measured over several iterations,
+ * reporting throughput and the bytes allocated per operation by the
+ * benchmark thread (the equivalent of JMH's gc profiler).  Compile and run
+ * with:
+ *
+ * javac ThirdNextBenchmark.java
+ * java ThirdNextBenchmark [iterations=5] [millis=1000] [filter=substring]
+ */
+
+//package thirdnextappointment;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class ThirdNextBenchmark {
+
+    // Schedule days per clinic size: providers times working days in a year
+    static final int[][] CLINIC_SIZES = { { 5, 250 }, { 50, 250 }, { 500, 250 } };
+    static final String[] CLINIC_NAMES = { "small", "medium", "large" };
+    // Template slot lengths in minutes
+    static final int[] GRANULARITIES = { 5, 10, 15 };
+    // Fraction of bookable time that is booked
+    static final double[] DENSITIES = { 0.3, 0.7, 0.95 };
+    static final String[] SCHED_SYMBOLS = "1,2,3,6,s,S,U,W".split(",");
+    static final int APPT_LENGTH = 15;
+
+    /**
+     * One benchmarked operation.
+     */
+    static abstract class Benchmark {
+
+        final String name;
+        // Consumed result, so the JIT cannot drop the work
+        long sink;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Generates the benchmark's data; called before it is measured so
+         * only one benchmark's data is in memory at a time.
+         */
+        void setUp() {
+        }
+
+        void tearDown() {
+        }
+
+        abstract void run();
+    }
+
+    /**
+     * Scans or decodes the schedule days of a synthetic clinic.
+     */
+    static class ClinicBenchmark extends Benchmark {
+
+        final int numDays;
+        final int granularity;
+        final double density;
+        final boolean decode;
+        final int[] apptLengths = { APPT_LENGTH };
+        final int[] numAppts = new int[1];
+        String[] timecodes;
+        TemplateCache.Template[] templates;
+        AppointmentIndex.Day[] days;
+
+        ClinicBenchmark(String name, int numDays, int granularity, double density, boolean decode) {
+            super(name);
+            this.numDays = numDays;
+            this.granularity = granularity;
+            this.density = density;
+            this.decode = decode;
+        }
+
+        void setUp() {
+            Random random = new Random(42);
+            timecodes = new String[numDays];
+            templates = new TemplateCache.Template[numDays];
+            days = new AppointmentIndex.Day[numDays];
+            // A handful of templates per clinic, as in a real schedule
+            String[] choices = new String[8];
+            for (int i = 0; i < choices.length; i++) {
+                choices[i] = makeTimecode(random, granularity);
+            }
+            for (int i = 0; i < numDays; i++) {
+                timecodes[i] = choices[random.nextInt(choices.length)];
+                templates[i] = TemplateCache.decode(timecodes[i], SCHED_SYMBOLS);
+                days[i] = makeDay(random, granularity, density);
+            }
+        }
+
+        void tearDown() {
+            timecodes = null;
+            templates = null;
+            days = null;
+        }
+
+        void run() {
+            if (decode) {
+                for (int i = 0; i < numDays; i++) {
+                    sink += TemplateCache.decode(timecodes[i], SCHED_SYMBOLS).slots;
+                }
+            } else {
+                for (int i = 0; i < numDays; i++) {
+                    ProviderTimeline.countOpenings(templates[i], days[i], apptLengths, numAppts);
+                    sink += numAppts[0];
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the openings of the schedule days of a synthetic clinic with
+     * the overlap-aware booking model.
+     */
+    static class IntervalBenchmark extends ClinicBenchmark {
+
+        final int[] runs = new int[2 + ProviderTimeline.DAY_MINS];
+
+        IntervalBenchmark(String name, int numDays, int granularity, double density) {
+            super(name, numDays, granularity, density, false);
+        }
+
+        void run() {
+            for (int i = 0; i < numDays; i++) {
+                BookingIntervals.countOpenings(templates[i], days[i], apptLengths, numAppts, runs);
+                sink += numAppts[0];
+            }
+        }
+    }
+
+    static private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    static private Method allocatedBytes;
+
+    static {
+        // com.sun.management.ThreadMXBean is HotSpot specific, so use it
+        // only when present
+        try {
+            Class<?> hotspotThreads = Class.forName("com.sun.management.ThreadMXBean");
+            if (hotspotThreads.isInstance(threads)) {
+                allocatedBytes = hotspotThreads.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            allocatedBytes = null;
+        }
+    }
+
+    static private long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return ((Long) allocatedBytes.invoke(threads, Thread.currentThread().getId())).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Generates a day template with a morning and afternoon clinic, with a
+     * lunch break and an occasional unbookable slot.
+     */
+    static String makeTimecode(Random random, int granularity) {
+        int slots = ProviderTimeline.DAY_MINS / granularity;
+        StringBuilder sb = new StringBuilder(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            int minute = slot * granularity;
+            if (minute < 8 * 60 || minute >= 17 * 60 || (minute >= 12 * 60 && minute < 13 * 60)) {
+                sb.append('_');
+            } else if (random.nextInt(10) == 0) {
+                sb.append('L');
+            } else {
+                sb.append(SCHED_SYMBOLS[random.nextInt(SCHED_SYMBOLS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates the booked appointments of a day, each one to three slots
+     * long and starting on a slot boundary.
+     */
+    static AppointmentIndex.Day makeDay(Random random, int granularity, double density) {
+        int[] startMins = new int[9 * 60 / granularity];
+        int[] endMins = new int[startMins.length];
+        int count = 0;
+        int minute = 8 * 60;
+        while (minute < 17 * 60) {
+            int length = (1 + random.nextInt(3)) * Math.max(granularity, APPT_LENGTH);
+            if (random.nextDouble() < density) {
+                startMins[count] = minute;
+                endMins[count] = minute + length - 1;
+                ++count;
+            }
+            minute += length;
+        }
+        int[] start = new int[count];
+        int[] end = new int[count];
+        System.arraycopy(startMins, 0, start, 0, count);
+        System.arraycopy(endMins, 0, end, 0, count);
+        return new AppointmentIndex.Day(start, end, count);
+    }
+
+    static ArrayList<Benchmark> createBenchmarks() {
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int size = 0; size < CLINIC_SIZES.length; size++) {
+            for (int granularity : GRANULARITIES) {
+                for (double density : DENSITIES) {
+                    int numDays = CLINIC_SIZES[size][0] * CLINIC_SIZES[size][1];
+                    String params = "clinic=" + CLINIC_NAMES[size] + " slot=" + granularity + "min density=" + density;
+                    benchmarks.add(new ClinicBenchmark("slotScan " + params, numDays, granularity, density, false));
+                    benchmarks.add(new IntervalBenchmark("intervalScan " + params, numDays, granularity, density));
+                    if (density == DENSITIES[0]) {
+                        params = "clinic=" + CLINIC_NAMES[size] + " slot=" + granularity + "min";
+                        benchmarks.add(new ClinicBenchmark("templateDecode " + params, numDays, granularity, density, true));
+                    }
+                }
+            }
+        }
+        final String[] earliestDates = { "2014-04-01", "2010-01-05", "2000-01-04" };
+        for (final String earliest : earliestDates) {
+            benchmarks.add(new Benchmark("getDates earliest=" + earliest) {
+                void run() {
+                    sink += ReportDate.getDates(earliest, "tuesday").size();
+                }
+            });
+            benchmarks.add(new Benchmark("calendarDays earliest=" + earliest) {
+                final ReportCalendar calendar = ReportCalendar.create("tuesday", earliest);
+
+                void run() {
+                    ReportCalendar.DayCursor days = calendar.days();
+                    while (days.hasNext()) {
+                        sink += days.next();
+                    }
+                }
+            });
+            benchmarks.add(new Benchmark("getDaysBetween earliest=" + earliest) {
+                void run() {
+                    sink += ReportDate.getDaysBetween(earliest, "2015-06-09");
+                }
+            });
+        }
+        return benchmarks;
+    }
+
+    /**
+     * Runs a benchmark repeatedly for a time and prints its throughput and
+     * allocation rate.
+     */
+    static void measure(Benchmark benchmark, int iterations, long millis) {
+        // Warm up for as long as one measured iteration, to let the JIT settle
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            benchmark.run();
+        }
+
+        double bestOpsPerSec = 0;
+        double totalOps = 0;
+        double totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long ops = 0;
+            long bytesBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            long deadline = start + millis * 1000000L;
+            long now;
+            do {
+                benchmark.run();
+                ++ops;
+                now = System.nanoTime();
+            } while (now < deadline);
+            long bytes = getAllocatedBytes() - bytesBefore;
+            totalOps += ops;
+            totalNanos += now - start;
+            totalBytes += bytes;
+            bestOpsPerSec = Math.max(bestOpsPerSec, ops * 1e9 / (now - start));
+        }
+        String allocation = getAllocatedBytes() < 0 ? "n/a" : String.format("%.1f", totalBytes / totalOps);
+        System.out.println(String.format("%-60s %14.1f %14.1f %14.1f %12s",
+                benchmark.name, totalOps * 1e9 / totalNanos, bestOpsPerSec, totalNanos / totalOps, allocation));
+    }
+
+    public static void main(String[] args) {
+        int iterations = 5;
+        long millis = 1000;
+        String filter = null;
+        for (String arg : args) {
+            if (arg.startsWith("iterations=")) {
+                iterations = Integer.parseInt(arg.substring("iterations=".length()));
+            } else if (arg.startsWith("millis=")) {
+                millis = Long.parseLong(arg.substring("millis=".length()));
+            } else if (arg.startsWith("filter=")) {
+                filter = arg.substring("filter=".length());
+            } else {
+                System.out.println("Parameter [" + arg + "] is not a valid benchmark parameter");
+            }
+        }
+
+        System.out.println(String.format("%-60s %14s %14s %14s %12s", "Benchmark", "ops/s", "best ops/s", "ns/op", "bytes/op"));
+        long sink = 0;
+        for (Benchmark benchmark : createBenchmarks()) {
+            if (filter == null || benchmark.name.contains(filter)) {
+                benchmark.setUp();
+                measure(benchmark, iterations, millis);
+                benchmark.tearDown();
+                sink += benchmark.sink;
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Remembers, between runs, the clinician results of every provider and
+ * report date together with a fingerprint of each schedule day they were
+ * computed from, so only results whose inputs have changed are recomputed.
+ *
+ * The result of a report date depends on the provider's schedule and
+ * appointments from that date up to the date of the last nth next
+ * appointment found, its horizon, or on all later days if one was not found.
+ * A result is recomputed when any day in that window has a new fingerprint,
+ * when the provider's numbers change, or, for all results, when the
+ * templates or report settings change.
+ *
+ * The store is a text file, replaced like the reports (see AtomicFile).
+ */
+
+//package thirdnextappointment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class WatermarkStore {
+
+    /**
+     * What is remembered of one provider.
+     */
+    static class ProviderState {
+
+        String providerInfo;
+        // Fingerprint of each schedule day, by date
+        TreeMap<String, Long> days = new TreeMap<String, Long>();
+        // Clinician JSON and horizon of each report date; the horizon is ""
+        // if the result depends on all later days
+        HashMap<String, String[]> results = new HashMap<String, String[]>();
+    }
+
+    private final String file;
+    private final String config;
+    private final ConcurrentHashMap<String, ProviderState> providers = new ConcurrentHashMap<String, ProviderState>();
+    // Report dates with a result that differs from the remembered one
+    private final Set<String> changedDates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private WatermarkStore(String file, String config) {
+        this.file = file;
+        this.config = config;
+    }
+
+    /**
+     * Reads the store, discarding it if it was made with other settings or
+     * templates.
+     * @param file
+     * @param config fingerprint of the report settings and templates
+     * @return
+     */
+    static WatermarkStore load(String file, String config) {
+        WatermarkStore store = new WatermarkStore(file, config);
+        File f = new File(file);
+        if (!f.exists()) {
+            return store;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            String line = in.readLine();
+            if (line == null || !line.equals("config\t" + config)) {
+                return store;
+            }
+            ProviderState state = null;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields[0].equals("provider") && fields.length == 3) {
+                    state = new ProviderState();
+                    state.providerInfo = fields[2];
+                    store.providers.put(fields[1], state);
+                } else if (fields[0].equals("day") && fields.length == 3 && state != null) {
+                    state.days.put(fields[1], Long.parseLong(fields[2]));
+                } else if (fields[0].equals("result") && fields.length == 4 && state != null) {
+                    state.results.put(fields[1], new String[] { fields[3], fields[2] });
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.out);
+            store.providers.clear();
+        } catch (NumberFormatException e) {
+            e.printStackTrace(System.out);
+            store.providers.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @param provider
+     * @param reportDates in format "yyyy-MM-dd"
+     * @param fingerprints the provider's current day fingerprints
+     * @param providerInfo the provider's current "cpsid" and "msp" fields
+     * @return the report dates whose result must be recomputed
+     */
+    List<String> getStaleDates(String provider, List<String> reportDates, TreeMap<String, Long> fingerprints, String providerInfo) {
+        ProviderState state = providers.get(provider);
+        if (state == null || (providerInfo == null ? state.providerInfo.length() > 0 : !providerInfo.equals(state.providerInfo))) {
+            return reportDates;
+        }
+
+        TreeSet<String> changed = new TreeSet<String>();
+        for (Map.Entry<String, Long> day : fingerprints.entrySet()) {
+            if (!day.getValue().equals(state.days.get(day.getKey()))) {
+                changed.add(day.getKey());
+            }
+        }
+        for (String date : state.days.keySet()) {
+            if (!fingerprints.containsKey(date)) {
+                changed.add(date);
+            }
+        }
+
+        ArrayList<String> stale = new ArrayList<String>();
+        for (String reportDate : reportDates) {
+            String[] result = state.results.get(reportDate);
+            if (result == null) {
+                stale.add(reportDate);
+            } else if (result[1].length() == 0) {
+                if (changed.ceiling(reportDate) != null) {
+                    stale.add(reportDate);
+                }
+            } else if (!changed.subSet(reportDate, true, result[1], true).isEmpty()) {
+                stale.add(reportDate);
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * @param provider
+     * @param reportDate
+     * @return the remembered clinician JSON, or null
+     */
+    String getResult(String provider, String reportDate) {
+        ProviderState state = providers.get(provider);
+        String[] result = state != null ? state.results.get(reportDate) : null;
+        return result != null ? result[0] : null;
+    }
+
+    /**
+     * Replaces what is remembered of a provider.
+     * @param provider
+     * @param reportDates the report dates to keep results of; others are
+     * forgotten
+     * @param fingerprints the day fingerprints the new results were made from
+     * @param providerInfo
+     * @param reports recomputed clinician JSON by report date
+     * @param horizons horizon of each recomputed report date; a result without
+     * a horizon could not be computed and is not remembered
+     */
+    void update(String provider, List<String> reportDates, TreeMap<String, Long> fingerprints, String providerInfo, Map<String, String> reports, Map<String, String> horizons) {
+        ProviderState previous = providers.get(provider);
+        ProviderState state = new ProviderState();
+        state.providerInfo = providerInfo != null ? providerInfo : "";
+        state.days = fingerprints;
+        for (String reportDate : reportDates) {
+            String[] result;
+            if (reports.containsKey(reportDate)) {
+                String horizon = horizons.get(reportDate);
+                result = horizon != null ? new String[] { reports.get(reportDate), horizon } : null;
+                String[] previousResult = previous != null ? previous.results.get(reportDate) : null;
+                if (result != null && (previousResult == null || !previousResult[0].equals(result[0]))) {
+                    changedDates.add(reportDate);
+                }
+            } else {
+                result = previous != null ? previous.results.get(reportDate) : null;
+            }
+            if (result != null) {
+                state.results.put(reportDate, result);
+            }
+        }
+        providers.put(provider, state);
+    }
+
+    /**
+     * @param reportDate
+     * @return whether any provider's result of the date was recomputed with
+     * a different outcome
+     */
+    boolean isChanged(String reportDate) {
+        return changedDates.contains(reportDate);
+    }
+
+    /**
+     * Writes the store.
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        AtomicFile target = AtomicFile.create(new File(file));
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(target.getStream(), "UTF-8"));
+            out.write("config\t" + config + "\n");
+            for (Map.Entry<String, ProviderState> entry : new TreeMap<String, ProviderState>(providers).entrySet()) {
+                ProviderState state = entry.getValue();
+                out.write("provider\t" + entry.getKey() + "\t" + state.providerInfo + "\n");
+                for (Map.Entry<String, Long> day : state.days.entrySet()) {
+                    out.write("day\t" + day.getKey() + "\t" + day.getValue() + "\n");
+                }
+                for (Map.Entry<String, String[]> result : new TreeMap<String, String[]>(state.results).entrySet()) {
+                    out.write("result\t" + result.getKey() + "\t" + result.getValue()[1] + "\t" + result.getValue()[0] + "\n");
+                }
+            }
+            out.close();
+            target.commit();
+        } finally {
+            target.abort();
+        }
+    }
+}